@@ -0,0 +1,122 @@
+package com.aylmerchen.stack;
+
+import android.util.Log;
+
+import static com.aylmerchen.stack.BuildConfig.debug;
+
+/**
+ * 自适应帧间隔
+ * 每发送完一帧都根据外设排空该帧的情况调整帧间隔（AIMD）：
+ * 暂停结束时外设已确认该帧的所有蓝牙包，说明还有余量，间隔减小，暂停中外设空闲得越久减小得越多，最少减小 {@link #DECREASE_STEP}；
+ * 外设还没排空或有蓝牙包等待确认超时，说明发得太快，间隔成倍增大
+ * 间隔始终在配置的上下限之内，线程安全
+ */
+final class FramePacer {
+
+    private static final String TAG = FramePacer.class.getSimpleName();
+
+    /**
+     * 每次线性减小的步长，单位 ms
+     */
+    private static final long DECREASE_STEP = 2;
+
+    /**
+     * 保留的帧间隔历史个数
+     */
+    private static final int HISTORY_SIZE = 32;
+
+    private final long minGap;
+
+    private final long maxGap;
+
+    /**
+     * 当前帧间隔，单位 ms
+     */
+    private long gap;
+
+    /**
+     * 最近一帧从开始发送到最后一个蓝牙包被确认的时长，单位 ms，未排空时为 -1
+     */
+    private long lastDrainTime = -1;
+
+    /**
+     * 帧间隔的变化历史，环形保存
+     */
+    private final long[] history = new long[HISTORY_SIZE];
+
+    private int historyStart;
+
+    private int historyCount;
+
+    /**
+     * @param initialGap 初始帧间隔，单位 ms
+     * @param minGap 帧间隔下限，单位 ms
+     * @param maxGap 帧间隔上限，单位 ms，小于下限时按下限处理
+     */
+    FramePacer(long initialGap, long minGap, long maxGap) {
+        this.minGap = Math.max(0L, minGap);
+        this.maxGap = Math.max(this.minGap, maxGap);
+        this.gap = clamp(initialGap);
+        record(gap);
+    }
+
+    synchronized long getGap() {
+        return gap;
+    }
+
+    synchronized long getLastDrainTime() {
+        return lastDrainTime;
+    }
+
+    /**
+     * 一帧的暂停结束后调用，据此调整下一次的帧间隔
+     * @param sendTime 从开始发送该帧到最后一个蓝牙包交给外设、开始暂停的时长，单位 ms
+     * @param drainTime 从开始发送该帧到最后一个蓝牙包被确认的时长，单位 ms，暂停结束时还有未确认的包则为 -1
+     * @param lost 发送该帧期间是否有蓝牙包等待确认超时
+     */
+    synchronized void onFrameSent(long sendTime, long drainTime, boolean lost) {
+        lastDrainTime = drainTime;
+
+        long next;
+        if (lost || drainTime < 0) {
+            next = clamp(Math.max(gap * 2, gap + 1));
+        } else {
+            // 暂停中外设排空该帧之后的空闲时长，每次收回一半
+            long idle = gap - Math.max(0L, drainTime - sendTime);
+            next = clamp(gap - Math.max(DECREASE_STEP, idle / 2));
+        }
+
+        if (next != gap) {
+            if (debug) {
+                Log.e(TAG, "帧间隔调整为：" + next + " ms, 排空时长：" + drainTime + " ms, 丢包：" + lost);
+            }
+            gap = next;
+            record(next);
+        }
+    }
+
+    /**
+     * 帧间隔的变化历史，从旧到新
+     */
+    synchronized long[] getHistory() {
+        long[] copy = new long[historyCount];
+        for (int i = 0; i < historyCount; i++) {
+            copy[i] = history[(historyStart + i) % HISTORY_SIZE];
+        }
+        return copy;
+    }
+
+    private long clamp(long value) {
+        return Math.max(minGap, Math.min(maxGap, value));
+    }
+
+    private void record(long value) {
+        if (historyCount < HISTORY_SIZE) {
+            history[(historyStart + historyCount) % HISTORY_SIZE] = value;
+            historyCount++;
+        } else {
+            history[historyStart] = value;
+            historyStart = (historyStart + 1) % HISTORY_SIZE;
+        }
+    }
+}
@@ -21,7 +21,7 @@ public interface IConfig {
     long getMyAddress();
 
     /**
-     * 获取外部设置的连接层蓝牙帧发送间隔
+     * 获取外部设置的连接层蓝牙帧发送间隔，作为自适应帧间隔的初始值
      * @return 帧间隔，单位:ms
      */
     long getFrameGap();
@@ -0,0 +1,37 @@
+package com.aylmerchen.stack;
+
+/**
+ * 流式接收大块数据的接口，见 {@link StackContext#setStreamHandler(IStreamHandler)}
+ * 回调在协议栈的接收线程中执行，不应有耗时操作
+ */
+public interface IStreamHandler {
+
+    /**
+     * 开始接收一条流式发送的信息
+     * @param sendId 发送者的 id
+     * @param frameCount 帧总数，可用于估计数据长度
+     * @return 本条信息的接收者，为 null 时按普通信息整条接收后回调 {@link IComm#stackUnPackageFinish(long, byte[])}
+     */
+    Receiver onStreamStart(long sendId, int frameCount);
+
+    /**
+     * 单条流式信息的接收者，按顺序收到数据，最后收到 {@link #onEnd()} 或 {@link #onAbort()} 之一
+     */
+    interface Receiver {
+
+        /**
+         * 按顺序收到的一段数据
+         */
+        void onData(byte[] data);
+
+        /**
+         * 所有数据都已收到
+         */
+        void onEnd();
+
+        /**
+         * 接收超时或因内存不足被放弃，不会再收到数据
+         */
+        void onAbort();
+    }
+}
@@ -0,0 +1,121 @@
+package com.aylmerchen.stack;
+
+/**
+ * 单次异步发送的可选参数
+ */
+public class SendOptions {
+
+    /**
+     * 高优先级，如告警信息，可以插入到低优先级帧流的帧之间发送
+     */
+    public static final int PRIORITY_HIGH = 0;
+
+    /**
+     * 普通优先级，默认值
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * 低优先级，如大块数据的批量传输
+     */
+    public static final int PRIORITY_LOW = 2;
+
+    /**
+     * 优先级的级数
+     */
+    static final int PRIORITY_COUNT = 3;
+
+    private int priority = PRIORITY_NORMAL;
+
+    private boolean selectiveRepeat;
+
+    private boolean compressed;
+
+    private boolean coalesced;
+
+    private int fecBlockSize;
+
+    private int fecRepairFrames;
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * 设置发送优先级
+     * @param priority {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} 或 {@link #PRIORITY_LOW}，超出范围时按最近的级别处理
+     * @return this
+     */
+    public SendOptions setPriority(int priority) {
+        this.priority = Math.max(PRIORITY_HIGH, Math.min(PRIORITY_LOW, priority));
+        return this;
+    }
+
+    public boolean isSelectiveRepeat() {
+        return selectiveRepeat;
+    }
+
+    /**
+     * 设置是否使用选择重传，仅对多帧信息有效
+     * 发送端会保留已发送的帧流一段时间，接收端发现丢帧后用 NACK 请求只重传丢失的帧，而不是整条信息重发
+     * @param selectiveRepeat 是否使用选择重传，默认不使用
+     * @return this
+     */
+    public SendOptions setSelectiveRepeat(boolean selectiveRepeat) {
+        this.selectiveRepeat = selectiveRepeat;
+        return this;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * 设置是否在拆分前压缩数据，适合 JSON、文本等冗余较大的信息，压缩后不能变小时按原数据发送
+     * 收发双方可以通过 {@link StackContext#setCompressionDictionary(byte[])} 共享预设字典，提升短信息的压缩率
+     * @param compressed 是否压缩，默认不压缩
+     * @return this
+     */
+    public SendOptions setCompressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * 设置是否与其他短信息合并发送，适合频繁发送的传感器数据等短信息
+     * 在 {@link StackOptions#setCoalesceDelay(long)} 内提交的、目的地址和发送参数都相同的短信息打包为一帧发送，
+     * 接收端拆开后逐条回调，代价是最多增加一个合并等待时间的延迟，超过 255 字节或放不进一帧的信息不合并
+     * @param coalesced 是否合并，默认不合并
+     * @return this
+     */
+    public SendOptions setCoalesced(boolean coalesced) {
+        this.coalesced = coalesced;
+        return this;
+    }
+
+    public int getFecBlockSize() {
+        return fecBlockSize;
+    }
+
+    public int getFecRepairFrames() {
+        return fecRepairFrames;
+    }
+
+    /**
+     * 设置前向纠错的冗余度，适合丢帧较多的链路和无法逐个重传的广播
+     * 每 blockSize 个数据帧附加 repairFrames 个修复帧，同一组中丢失不超过 repairFrames 帧时接收端都能直接还原
+     * 冗余度越高越可靠，但占用的空口时间也按 repairFrames / blockSize 的比例增加，单帧信息不附加修复帧
+     * @param blockSize 每组的数据帧个数，1 ~ 128，默认 16
+     * @param repairFrames 每组的修复帧个数，为 0 时不使用前向纠错，不超过 blockSize
+     * @return this
+     */
+    public SendOptions setFec(int blockSize, int repairFrames) {
+        this.fecBlockSize = Math.max(1, Math.min(128, blockSize));
+        this.fecRepairFrames = Math.max(0, Math.min(this.fecBlockSize, repairFrames));
+        return this;
+    }
+}
@@ -0,0 +1,498 @@
+package com.aylmerchen.stack;
+
+import android.util.Log;
+
+import com.aylmerchen.stack.mediator.IMediator;
+import com.aylmerchen.stack.mediator.IMediator.FrameStream;
+import com.aylmerchen.stack.util.BaseBuffer;
+import com.aylmerchen.stack.util.HashedWheelTimer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 协议栈的异步发送队列
+ * 待发送信息按优先级进入有界队列，由专门的写线程以帧为单位调度发送，调用者不会因帧间隔和蓝牙包等待而阻塞
+ * 每发送完一帧都重新选择优先级最高的信息，所以高优先级的信息可以插入到低优先级帧流的帧之间
+ * 可合并的短信息先在队列中等待一小段时间，期间发往同一目的地址的短信息打包为一条，以带长度前缀的记录依次存放
+ * 线程安全
+ */
+final class SendQueue {
+
+    private static final String TAG = SendQueue.class.getSimpleName();
+
+    /**
+     * 实际执行发送的接口，在写线程中调用
+     */
+    interface Sender {
+
+        /**
+         * 把待发送信息拆分为帧流
+         */
+        FrameStream openStream(long destAddress, byte[] msg, int streamFlags);
+
+        /**
+         * 发送帧流中的下一帧
+         */
+        void sendNextFrame(FrameStream stream);
+
+        /**
+         * 帧与帧之间的暂停
+         */
+        void pauseBetweenFrames();
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 各优先级的待发送信息，同一优先级内先进先出，正在发送的信息始终位于队首
+     */
+    private final ArrayDeque<SendTask>[] pending;
+
+    private final int capacity;
+
+    /**
+     * 队列中未完成的信息个数，合并包中的每条短信息各计一条
+     */
+    private int size;
+
+    private final Sender sender;
+
+    private Thread writerThread;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param capacity 队列容量，超出时新的发送请求直接失败
+     * @param sender 实际执行发送的接口
+     */
+    SendQueue(int capacity, Sender sender) {
+        this.capacity = capacity;
+        this.sender = sender;
+        this.pending = newQueues(SendOptions.PRIORITY_COUNT);
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new ArrayDeque<>();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<SendTask>[] newQueues(int count) {
+        return (ArrayDeque<SendTask>[]) new ArrayDeque<?>[count];
+    }
+
+    /**
+     * 提交一条待发送信息
+     * @param priority 优先级，见 {@link SendOptions}
+     * @param streamFlags 帧流标志，见 {@link com.aylmerchen.stack.mediator.IMediator}
+     * @return 发送结果，最后一个蓝牙包交给外部后完成，队列已满或已注销时失败
+     */
+    Future<Void> submit(long destAddress, byte[] msg, int priority, int streamFlags) {
+        return enqueue(new SendTask(destAddress, msg, priority, streamFlags));
+    }
+
+    /**
+     * 提交一个已拆分好的帧流，如连接层产生的 NACK 和重传帧
+     * @param priority 优先级，见 {@link SendOptions}
+     * @return 发送结果
+     */
+    Future<Void> submit(FrameStream stream, int priority) {
+        SendTask task = new SendTask(stream.getDestAddress(), null, priority, 0);
+        task.stream = stream;
+        return enqueue(task);
+    }
+
+    /**
+     * 提交一条可合并的短信息，在 delayMs 内提交的、目的地址和优先级相同的短信息打包为一帧发送
+     * 每条记录为 长度(1) | 数据，长度超过 255 或放不进一帧的信息按普通信息提交
+     * 合并的短信息各占一个队列容量，开始发送前被取消的短信息不再随包发出
+     * @param delayMs 最长等待合并的时间，单位 ms
+     * @param maxBatchSize 打包后的最大长度，即单帧最大数据长度
+     * @return 本条信息的发送结果，随所在的包一起完成
+     */
+    Future<Void> submitCoalesced(long destAddress, byte[] msg, int priority, int streamFlags, long delayMs, int maxBatchSize) {
+        int recordSize = 1 + msg.length;
+        if (msg.length > 0xFF || recordSize > maxBatchSize) {
+            return submit(destAddress, msg, priority, streamFlags);
+        }
+
+        SendTask member = new SendTask(destAddress, msg, priority, streamFlags);
+        int batchFlags = streamFlags | IMediator.STREAM_FLAG_COALESCED;
+
+        lock.lock();
+        try {
+            if (shutdown) {
+                member.fail(new IllegalStateException("协议栈已注销"));
+                return member;
+            }
+            if (size >= capacity) {
+                member.fail(new RejectedExecutionException("发送队列已满"));
+                return member;
+            }
+
+            // 优先并入还在等待的同一目的地址的包
+            for (SendTask task : pending[priority]) {
+                if (task.batch != null && !task.sealed && task.destAddress == destAddress
+                        && task.streamFlags == batchFlags
+                        && task.batch.getBufferLength() + recordSize <= task.batch.getCapacity()) {
+                    task.addRecord(member);
+                    size++;
+                    return member;
+                }
+            }
+
+            SendTask batch = new SendTask(destAddress, null, priority, batchFlags);
+            batch.batch = new BaseBuffer(maxBatchSize);
+            batch.notBefore = HashedWheelTimer.now() + delayMs;
+            batch.addRecord(member);
+
+            pending[priority].offerLast(batch);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        startWriterIfNeeded();
+        return member;
+    }
+
+    private Future<Void> enqueue(SendTask task) {
+        int priority = task.priority;
+
+        lock.lock();
+        try {
+            if (shutdown) {
+                task.fail(new IllegalStateException("协议栈已注销"));
+                return task;
+            }
+            if (size >= capacity) {
+                task.fail(new RejectedExecutionException("发送队列已满"));
+                return task;
+            }
+            pending[priority].offerLast(task);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        startWriterIfNeeded();
+        return task;
+    }
+
+    /**
+     * 当前队列中未发送完成的信息个数，合并包中的每条短信息各计一条
+     */
+    int depth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 注销队列，停止写线程，所有未发送完成的信息均以失败结束
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            for (ArrayDeque<SendTask> queue : pending) {
+                for (SendTask task : queue) {
+                    task.fail(new IllegalStateException("协议栈已注销"));
+                }
+                queue.clear();
+            }
+            size = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        synchronized (this) {
+            if (writerThread != null) {
+                writerThread.interrupt();
+            }
+        }
+    }
+
+    private synchronized void startWriterIfNeeded() {
+        if (writerThread != null || shutdown) {
+            return;
+        }
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "StackContext-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * 写线程：每次选出一条信息发送它的下一帧
+     */
+    private void writeLoop() {
+        while (!shutdown) {
+
+            SendTask task;
+            try {
+                task = nextTask();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (task == null) {
+                break;
+            }
+
+            if (task.stream == null) {
+                // 拆分和压缩可能很耗时，在锁外进行，期间其他线程仍可提交信息
+                FrameStream stream;
+                try {
+                    byte[] msg = task.batch != null ? task.batch.getAllBytes() : task.msg;
+                    stream = sender.openStream(task.destAddress, msg, task.streamFlags);
+                } catch (RuntimeException e) {
+                    finishIfDone(task, e);
+                    continue;
+                }
+                task.stream = stream;
+                if (!stream.hasNextFrame()) {
+                    // 空信息，直接完成
+                    finishIfDone(task, null);
+                    continue;
+                }
+            }
+
+            // 最后一帧交给物理层后立即结束该信息，不等之后的帧间暂停
+            boolean more;
+            try {
+                sender.sendNextFrame(task.stream);
+                if (Thread.currentThread().isInterrupted()) {
+                    // 注销时写线程被中断，该帧的蓝牙包没有等到外设确认，不能算作发送成功
+                    more = finishIfDone(task, new IllegalStateException("协议栈已注销，发送被中断"));
+                } else {
+                    more = finishIfDone(task, null);
+                }
+            } catch (RuntimeException e) {
+                more = finishIfDone(task, e);
+            }
+
+            // 还有待发送的帧时，每帧之间都需要暂停，给外设硬件处理时间
+            if (more && !shutdown) {
+                sender.pauseBetweenFrames();
+            }
+        }
+    }
+
+    /**
+     * 按优先级从高到低选出下一条可发送的信息，队列为空时等待，只有等待合并的包时等到最早的包可以发送
+     * 选出的信息还没有拆分为帧流时，由写线程在锁外拆分，合并的包从此不再接收新的短信息
+     */
+    private SendTask nextTask() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!shutdown) {
+                long now = HashedWheelTimer.now();
+                long nextReady = -1;
+
+                for (ArrayDeque<SendTask> queue : pending) {
+                    SendTask head = null;
+                    Iterator<SendTask> it = queue.iterator();
+                    while (it.hasNext()) {
+                        SendTask task = it.next();
+                        if (task.isCancelled()) {
+                            // 跳过并移除已被调用者取消的信息
+                            it.remove();
+                            size--;
+                        } else if (task.notBefore > now) {
+                            nextReady = nextReady < 0 ? task.notBefore : Math.min(nextReady, task.notBefore);
+                        } else {
+                            if (task.batch != null && !task.sealed) {
+                                // 封包前去掉已被取消的短信息，全部取消时整包移除
+                                size -= task.removeCancelledMembers();
+                                if (task.members.isEmpty()) {
+                                    it.remove();
+                                    continue;
+                                }
+                            }
+                            head = task;
+                            break;
+                        }
+                    }
+                    if (head == null) {
+                        continue;
+                    }
+
+                    head.sealed = true;
+
+                    // 接收端按 (源地址, 帧流标识) 分别重组，不同帧流的帧可以任意交错
+                    return head;
+                }
+
+                if (nextReady < 0) {
+                    notEmpty.await();
+                } else {
+                    notEmpty.await(nextReady - now, TimeUnit.MILLISECONDS);
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 信息的所有帧已发送完或发送出错时，将其移出队列并结束
+     * @return 队列中是否还有待发送的信息
+     */
+    private boolean finishIfDone(SendTask task, RuntimeException error) {
+        lock.lock();
+        try {
+            if (error != null || !task.stream.hasNextFrame()) {
+                if (pending[task.priority].remove(task)) {
+                    size -= task.getMessageCount();
+                }
+                if (error != null) {
+                    task.fail(error);
+                } else {
+                    task.succeed();
+                }
+            }
+            return size > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 单条发送任务，完成后即为发送结果
+     */
+    private static final class SendTask extends FutureTask<Void> {
+
+        private static final Callable<Void> NONE = new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        };
+
+        private final long destAddress;
+
+        private final byte[] msg;
+
+        private final int priority;
+
+        private final int streamFlags;
+
+        /**
+         * 开始发送时才拆分为帧流，只由写线程访问
+         */
+        private FrameStream stream;
+
+        /**
+         * 已被写线程选中开始发送，合并的包不再接收新的短信息
+         */
+        private boolean sealed;
+
+        /**
+         * 合并发送的包，存放各条短信息的记录，普通信息为 null
+         */
+        private BaseBuffer batch;
+
+        /**
+         * 并入本包的各条短信息，随本包一起完成
+         */
+        private List<SendTask> members;
+
+        /**
+         * 最早可以开始发送的时刻，单位 ms
+         */
+        private long notBefore;
+
+        SendTask(long destAddress, byte[] msg, int priority, int streamFlags) {
+            super(NONE);
+            this.destAddress = destAddress;
+            this.msg = msg;
+            this.priority = priority;
+            this.streamFlags = streamFlags;
+        }
+
+        /**
+         * 把一条短信息的记录追加到本包
+         */
+        void addRecord(SendTask member) {
+            putRecord(member);
+            if (members == null) {
+                members = new ArrayList<>();
+            }
+            members.add(member);
+        }
+
+        /**
+         * 移除已被调用者取消的短信息，并用剩余的记录重新打包
+         * @return 移除的短信息条数
+         */
+        int removeCancelledMembers() {
+            int removed = 0;
+            Iterator<SendTask> it = members.iterator();
+            while (it.hasNext()) {
+                if (it.next().isCancelled()) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                batch.clear();
+                for (SendTask member : members) {
+                    putRecord(member);
+                }
+            }
+            return removed;
+        }
+
+        private void putRecord(SendTask member) {
+            batch.putByte((byte) member.msg.length);
+            batch.put(member.msg);
+        }
+
+        /**
+         * 本任务在队列中所占的信息条数，合并的包为其中短信息的条数
+         */
+        int getMessageCount() {
+            return members == null ? 1 : members.size();
+        }
+
+        void succeed() {
+            set(null);
+            if (members != null) {
+                for (SendTask member : members) {
+                    member.set(null);
+                }
+            }
+        }
+
+        void fail(Throwable cause) {
+            Log.e(TAG, "信息发送失败：" + cause.getMessage());
+            setException(cause);
+            if (members != null) {
+                for (SendTask member : members) {
+                    member.setException(cause);
+                }
+            }
+        }
+    }
+}
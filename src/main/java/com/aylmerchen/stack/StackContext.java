@@ -6,6 +6,15 @@ import com.aylmerchen.stack.nwk.INwk;
 import com.aylmerchen.stack.nwk.LayerNwk;
 import com.aylmerchen.stack.phy.IPhy;
 import com.aylmerchen.stack.phy.LayerPhy;
+import com.aylmerchen.stack.util.BufferPool;
+import com.aylmerchen.stack.util.ChunkPool;
+import com.aylmerchen.stack.util.HashedWheelTimer;
+import com.aylmerchen.stack.util.MyTimer;
+
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Future;
 
 /**
  * 协议栈的客户端类，协议栈不包括应用层，只含适配层，路由层，硬件层（蓝牙层）
@@ -20,10 +29,67 @@ public class StackContext {
      */
     public static final long BROADCAST_ADDRESS = INwk.BROADCAST_ADDRESS;
 
+    /**
+     * 异步发送队列的容量
+     */
+    private static final int SEND_QUEUE_CAPACITY = 64;
+
     private IMediator mediatorLayer;
     private INwk nwkLayer;
     private IPhy phyLayer;
 
+    /**
+     * 异步发送队列
+     */
+    private final SendQueue sendQueue;
+
+    /**
+     * 同步发送和异步发送的写线程都经过适配层和网络层的发送缓冲，需要互斥
+     */
+    private final Object sendLock = new Object();
+
+    private final IConfig stackConfig;
+
+    /**
+     * 重组内存块池
+     */
+    private final ChunkPool chunkPool;
+
+    /**
+     * 合并广播的短信息打包后的最大长度，即扩展帧头下的单帧数据长度
+     */
+    private final int maxCoalescedSize;
+
+    /**
+     * 合并单播的短信息打包后的最大长度，单播的网络层帧头更长，单帧数据更少
+     */
+    private final int maxCoalescedUnicastSize;
+
+    /**
+     * 短信息的最长合并等待时间，单位 ms
+     */
+    private final long coalesceDelay;
+
+    /**
+     * 流式接收接口
+     */
+    private volatile IStreamHandler streamHandler;
+
+    /**
+     * 自适应帧间隔
+     */
+    private final FramePacer framePacer;
+
+    /**
+     * 当前帧开始发送的时刻，单位 ms
+     */
+    private volatile long frameStartTime;
+
+    /**
+     * 当前帧开始发送时物理层的确认超时个数
+     */
+    private volatile long frameStartTimeouts;
+
 
     /**
      * 初始化协议栈上下文
@@ -32,6 +98,30 @@ public class StackContext {
      * @param stackComm 协议栈的打包和解包回调
      */
     public StackContext(final IConfig stackConfig, final IComm stackComm) {
+        this(stackConfig, stackComm, new StackOptions());
+    }
+
+    /**
+     * 初始化协议栈上下文
+     *
+     * @param stackConfig 协议栈配置回调
+     * @param stackComm 协议栈的打包和解包回调
+     * @param options 可选调优参数
+     */
+    public StackContext(final IConfig stackConfig, final IComm stackComm, StackOptions options) {
+        this(stackConfig, stackComm, options, new BufferPool(), new ChunkPool());
+    }
+
+    /**
+     * 初始化协议栈上下文，多个实例可以共享接收缓冲池，见 {@link StackGroup}
+     *
+     * @param stackConfig 协议栈配置回调
+     * @param stackComm 协议栈的打包和解包回调
+     * @param options 可选调优参数
+     * @param bufferPool 接收缓冲池
+     * @param chunkPool 重组内存块池
+     */
+    StackContext(final IConfig stackConfig, final IComm stackComm, StackOptions options, BufferPool bufferPool, ChunkPool chunkPool) {
 
         // 物理层 单次最大允许发送长度，即蓝牙外设的缓冲区大小 128
         int phyMaxSendSize = stackConfig.getPhyMaxSendSize();
@@ -39,13 +129,26 @@ public class StackContext {
         // 网络层 单次最大允许发送长度，128 - 4 = 124
         int nwkMaxSendSize = phyMaxSendSize - IPhy.HEAD_SIZE;
 
-        // 连接层 单次最大允许发送长度(发送广播帧)，124 - 28 = 96
-        int medMaxSendSize = nwkMaxSendSize - INwk.HEAD_SIZE_BROADCAST;
+        // 连接层 单次最大允许发送长度，广播 原帧头 124 - 28 = 96，紧凑帧头 124 - 13 = 111
+        boolean compactNwkHeader = options.isCompactNwkHeader();
+        int medMaxSendSize = nwkMaxSendSize - (compactNwkHeader ? INwk.HEAD_SIZE_BROADCAST_COMPACT : INwk.HEAD_SIZE_BROADCAST);
+
+        // 单播帧头更长，原帧头 124 - 38 = 86，紧凑帧头 124 - 23 = 101
+        int medMaxUnicastSize = nwkMaxSendSize - (compactNwkHeader ? INwk.HEAD_SIZE_UNICAST_COMPACT : INwk.HEAD_SIZE_UNICAST);
+
+        this.stackConfig = stackConfig;
+        this.chunkPool = chunkPool;
+        this.maxCoalescedSize = medMaxSendSize - IMediator.EXT_HEAD_SIZE;
+        this.maxCoalescedUnicastSize = medMaxUnicastSize - IMediator.EXT_HEAD_SIZE;
+        this.coalesceDelay = options.getCoalesceDelay();
+        this.framePacer = new FramePacer(stackConfig.getFrameGap(), options.getMinFrameGap(),
+                Math.max(options.getMaxFrameGap(), stackConfig.getFrameGap()));
 
         // 初始化连接层
-        this.mediatorLayer = new LayerMediator(medMaxSendSize, new IMediator.LayerCallback() {
+        this.mediatorLayer = new LayerMediator(medMaxSendSize, medMaxUnicastSize, new MyTimer(), bufferPool, chunkPool, new IMediator.LayerCallback() {
             @Override
             public void packageFinish(long destAddress, byte[] sendData) {
+                beginFrame();
                 nwkLayer.packaging(destAddress, sendData);
             }
 
@@ -55,18 +158,58 @@ public class StackContext {
             }
 
             @Override
-            public long getFrameGap() {
-                return stackConfig.getFrameGap();
+            public void pauseBetweenFrames() {
+                pacedPause();
+            }
+
+            @Override
+            public long getMyAddress() {
+                return stackConfig.getMyAddress();
+            }
+
+            @Override
+            public void submitStream(IMediator.FrameStream stream) {
+                // NACK 和重传帧优先发送，尽快补齐接收端的帧流
+                sendQueue.submit(stream, SendOptions.PRIORITY_HIGH);
+            }
+
+            @Override
+            public IMediator.StreamSink openStreamSink(long srcAddress, int frameCount) {
+                IStreamHandler handler = streamHandler;
+                if (handler == null) {
+                    return null;
+                }
+                final IStreamHandler.Receiver receiver = handler.onStreamStart(srcAddress, frameCount);
+                if (receiver == null) {
+                    return null;
+                }
+                return new IMediator.StreamSink() {
+                    @Override
+                    public void onData(byte[] data) {
+                        receiver.onData(data);
+                    }
+
+                    @Override
+                    public void onEnd() {
+                        receiver.onEnd();
+                    }
+
+                    @Override
+                    public void onAbort() {
+                        receiver.onAbort();
+                    }
+                };
             }
         });
+        ((LayerMediator) mediatorLayer).setStreamRetainFrames(options.getStreamRetainFrames());
 
 
         // 初始化 网络层
-        this.nwkLayer = new LayerNwk(stackConfig.getMyAddress(), nwkMaxSendSize, new INwk.LayerCallback() {
+        this.nwkLayer = new LayerNwk(stackConfig.getMyAddress(), nwkMaxSendSize, compactNwkHeader, new INwk.LayerCallback() {
 
             @Override
             public void packageDownward(byte[] sendData) {
-                phyLayer.packaging(sendData);
+                ((LayerPhy) phyLayer).packagingFrame(sendData);
             }
 
             @Override
@@ -79,10 +222,12 @@ public class StackContext {
                 stackComm.transfer(transferData);
             }
         });
+        ((LayerNwk) nwkLayer).setRelaySuppression(options.getRelaySuppressThreshold(), options.getRelayBackoffWindow());
+        ((LayerNwk) nwkLayer).setHelloInterval(options.getHelloInterval());
 
 
         // 初始化 物理层
-        this.phyLayer = new LayerPhy(phyMaxSendSize, new IPhy.LayerCallback() {
+        this.phyLayer = new LayerPhy(phyMaxSendSize, options.getPhySendWindow(), new MyTimer(), new IPhy.LayerCallback() {
             @Override
             public void packageFinish(byte[] sendData) {
                 stackComm.stackPackageFinish(sendData);
@@ -93,17 +238,168 @@ public class StackContext {
                 nwkLayer.unPackaging(receiveData);
             }
         });
+
+        this.sendQueue = new SendQueue(SEND_QUEUE_CAPACITY, new SendQueue.Sender() {
+            @Override
+            public IMediator.FrameStream openStream(long destAddress, byte[] msg, int streamFlags) {
+                return mediatorLayer.openStream(destAddress, msg, streamFlags);
+            }
+
+            @Override
+            public void sendNextFrame(IMediator.FrameStream stream) {
+                synchronized (sendLock) {
+                    beginFrame();
+                    nwkLayer.packaging(stream.getDestAddress(), stream.nextFrame());
+                }
+            }
+
+            @Override
+            public void pauseBetweenFrames() {
+                pacedPause();
+            }
+        });
+    }
+
+    /**
+     * 开始发送一帧前记录时刻和物理层的超时个数，暂停结束时据此判断外设的排空情况
+     */
+    private void beginFrame() {
+        frameStartTimeouts = ((LayerPhy)phyLayer).getPackageTimeoutCount();
+        frameStartTime = HashedWheelTimer.now();
+    }
+
+    /**
+     * 按自适应帧间隔暂停，暂停结束后把外设的排空情况反馈给帧间隔
+     */
+    private void pacedPause() {
+        long sendTime = HashedWheelTimer.now() - frameStartTime;
+        try {
+            Thread.sleep(framePacer.getGap());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // 只看本机帧的最后一个蓝牙包，转发帧的蓝牙包不影响排空的判断
+        LayerPhy phy = (LayerPhy) phyLayer;
+        boolean lost = phy.getPackageTimeoutCount() > frameStartTimeouts;
+        long drainedAt = phy.getFrameDrainTime();
+        long drainTime = drainedAt < 0 ? -1 : Math.max(0L, drainedAt - frameStartTime);
+        framePacer.onFrameSent(sendTime, drainTime, lost);
     }
 
     /**
-     * 发送广播帧和普通帧方法
+     * 发送广播帧和普通帧方法，在调用者线程中完成整个发送流程，会阻塞到最后一个蓝牙包交给外部为止
      */
     public void send(long destAddress, byte[] msg) {
-        if (destAddress != BROADCAST_ADDRESS) {
-            mediatorLayer.packaging(destAddress, msg);
-        } else {
-            mediatorLayer.packaging(BROADCAST_ADDRESS, msg);
+        synchronized (sendLock) {
+            if (destAddress != BROADCAST_ADDRESS) {
+                mediatorLayer.packaging(destAddress, msg);
+            } else {
+                mediatorLayer.packaging(BROADCAST_ADDRESS, msg);
+            }
+        }
+    }
+
+    /**
+     * 以普通优先级异步发送广播帧和普通帧，见 {@link #sendAsync(long, byte[], SendOptions)}
+     */
+    public Future<Void> sendAsync(long destAddress, byte[] msg) {
+        return sendAsync(destAddress, msg, new SendOptions());
+    }
+
+    /**
+     * 异步发送广播帧和普通帧方法，信息进入发送队列后立即返回，由协议栈的写线程完成发送
+     * 写线程每发送完一帧都重新选择优先级最高的信息，高优先级信息不必等待低优先级的大块数据发送完毕
+     *
+     * @param destAddress 目的地址
+     * @param msg 待发送信息
+     * @param options 发送参数，如优先级、是否选择重传、是否压缩、是否合并短信息、前向纠错冗余度
+     * @return 发送结果，最后一个蓝牙包交给 {@link IComm#stackPackageFinish(byte[])} 后完成，
+     *         发送队列已满或协议栈已注销时以异常结束
+     */
+    public Future<Void> sendAsync(long destAddress, byte[] msg, SendOptions options) {
+        int streamFlags = 0;
+        if (options.isSelectiveRepeat()) {
+            streamFlags |= IMediator.STREAM_FLAG_SELECTIVE_REPEAT;
         }
+        if (options.isCompressed()) {
+            streamFlags |= IMediator.STREAM_FLAG_COMPRESSED;
+        }
+        if (options.getFecRepairFrames() > 0) {
+            streamFlags |= IMediator.STREAM_FLAG_FEC
+                    | options.getFecBlockSize() << IMediator.FEC_BLOCK_SHIFT
+                    | options.getFecRepairFrames() << IMediator.FEC_REPAIR_SHIFT;
+        }
+        if (options.isCoalesced()) {
+            return sendQueue.submitCoalesced(destAddress, msg, options.getPriority(), streamFlags,
+                    coalesceDelay, destAddress == BROADCAST_ADDRESS ? maxCoalescedSize : maxCoalescedUnicastSize);
+        }
+        return sendQueue.submit(destAddress, msg, options.getPriority(), streamFlags);
+    }
+
+    /**
+     * 设置重组内存不足时的淘汰策略
+     * @param evictionPolicy {@link IMediator#EVICT_OLDEST}, {@link IMediator#EVICT_LARGEST} 或 {@link IMediator#EVICT_NONE}
+     */
+    public void setReassemblyEvictionPolicy(int evictionPolicy) {
+        ((LayerMediator)mediatorLayer).setEvictionPolicy(evictionPolicy);
+    }
+
+    /**
+     * 获取重组内存块池的统计：命中空闲块次数、新分配次数、淘汰帧流次数、当前占用字节数，
+     * 由 {@link StackGroup} 创建的实例共享同一个块池
+     * @return {命中次数, 未命中次数, 淘汰次数, 占用字节数}
+     */
+    public long[] getReassemblyPoolStats() {
+        return new long[]{chunkPool.getHitCount(), chunkPool.getMissCount(),
+                chunkPool.getEvictionCount(), chunkPool.getUsedBytes()};
+    }
+
+    /**
+     * 设置压缩预设字典，收发双方必须设置相同的字典，见 {@link SendOptions#setCompressed(boolean)}
+     * @param dictionary 预设字典，为 null 时不使用字典
+     */
+    public void setCompressionDictionary(byte[] dictionary) {
+        ((LayerMediator)mediatorLayer).setCompressionDictionary(dictionary);
+    }
+
+    /**
+     * 流式异步发送大块数据，写线程每发送一帧才从输入流读取一帧的数据，发送端不必把整条信息放入内存
+     * 接收端注册了 {@link IStreamHandler} 时也按顺序逐段交付，否则整条重组后回调 {@link IComm#stackUnPackageFinish(long, byte[])}
+     * 流式发送总是按 NACK 重传丢失的帧，发送端只保留最近发出的若干帧，见 {@link StackOptions#setStreamRetainFrames(int)}；不支持压缩和合并，只使用 options 中的优先级
+     *
+     * @param destAddress 目的地址
+     * @param in 待发送数据的输入流，发送完成后由调用者关闭
+     * @param length 待发送数据的长度
+     * @param options 发送参数
+     * @return 发送结果，输入流出错或数据不足时以异常结束
+     * @throws IllegalArgumentException length 为负数或超过单个帧流能承载的长度
+     */
+    public Future<Void> sendStream(long destAddress, InputStream in, int length, SendOptions options) {
+        return sendQueue.submit(mediatorLayer.openStream(destAddress, in, length), options.getPriority());
+    }
+
+    /**
+     * 从通道流式异步发送大块数据，见 {@link #sendStream(long, InputStream, int, SendOptions)}
+     */
+    public Future<Void> sendStream(long destAddress, ReadableByteChannel channel, int length, SendOptions options) {
+        return sendStream(destAddress, Channels.newInputStream(channel), length, options);
+    }
+
+    /**
+     * 注册流式接收接口，之后开始接收的流式信息按顺序逐段交付
+     * @param handler 流式接收接口，为 null 时取消注册
+     */
+    public void setStreamHandler(IStreamHandler handler) {
+        this.streamHandler = handler;
+    }
+
+    /**
+     * 获取异步发送队列中尚未发送完成的信息个数
+     */
+    public int getSendQueueDepth() {
+        return sendQueue.depth();
     }
 
 
@@ -122,6 +418,52 @@ public class StackContext {
         ((LayerPhy)phyLayer).invokePHYSending();
     }
 
+    /**
+     * 蓝牙连接协商出新的 MTU 后由外部调用，物理层据此调整蓝牙包大小，从下一帧开始生效
+     * @param mtu 协商后的 ATT MTU
+     */
+    public void onMtuChanged(int mtu) {
+        ((LayerPhy)phyLayer).setMtu(mtu);
+    }
+
+    /**
+     * 获取物理层已得到远端确认的蓝牙包个数
+     */
+    public long getPhyAckCount() {
+        return ((LayerPhy)phyLayer).getPackageAckCount();
+    }
+
+    /**
+     * 获取物理层等待远端确认超时的蓝牙包个数
+     */
+    public long getPhyTimeoutCount() {
+        return ((LayerPhy)phyLayer).getPackageTimeoutCount();
+    }
+
+    /**
+     * 获取当前的自适应帧间隔
+     * @return 帧间隔，单位 ms
+     */
+    public long getFrameGap() {
+        return framePacer.getGap();
+    }
+
+    /**
+     * 获取自适应帧间隔最近的变化历史
+     * @return 从旧到新的帧间隔，单位 ms
+     */
+    public long[] getFrameGapHistory() {
+        return framePacer.getHistory();
+    }
+
+    /**
+     * 获取最近一帧从开始发送到外设确认所有蓝牙包的时长
+     * @return 单位 ms，外设在帧间隔内未排空时为 -1
+     */
+    public long getLastDrainTime() {
+        return framePacer.getLastDrainTime();
+    }
+
     /**
      * 协议栈对外部暴露的接收方法
      * @param msg 接收的信息
@@ -135,6 +477,7 @@ public class StackContext {
      * 注销协议栈
      */
     public void cancelStack() {
+        sendQueue.shutdown();
         mediatorLayer.cancelLayer();
         nwkLayer.cancelLayer();
         phyLayer.cancelLayer();
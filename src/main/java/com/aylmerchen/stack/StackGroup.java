@@ -0,0 +1,89 @@
+package com.aylmerchen.stack;
+
+import com.aylmerchen.stack.util.BufferPool;
+import com.aylmerchen.stack.util.ChunkPool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多射频网关模式：同一进程中连接多个 LoRa 模块时，每个模块对应一个 {@link StackContext}，
+ * 由本类统一创建，所有实例共享接收缓冲池和重组内存块池，重组占用的内存总量受同一个上限约束，定时器则与其他所有实例一样使用全局共享的时间轮，
+ * 各实例的收发状态互不影响
+ */
+public class StackGroup {
+
+    /**
+     * 所有实例共享的接收缓冲池
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * 所有实例共享的重组内存块池
+     */
+    private final ChunkPool chunkPool;
+
+    private final List<StackContext> stacks = new ArrayList<>();
+
+    private boolean cancelled;
+
+    public StackGroup() {
+        this(ChunkPool.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxReassemblyBytes 所有实例重组多帧信息占用的内存总量上限，单位：字节
+     */
+    public StackGroup(long maxReassemblyBytes) {
+        bufferPool = new BufferPool();
+        chunkPool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, maxReassemblyBytes);
+    }
+
+    /**
+     * 为一个射频模块创建协议栈实例
+     *
+     * @param stackConfig 该模块的协议栈配置回调
+     * @param stackComm 该模块的打包和解包回调
+     * @return 协议栈实例
+     */
+    public StackContext newStack(IConfig stackConfig, IComm stackComm) {
+        return newStack(stackConfig, stackComm, new StackOptions());
+    }
+
+    /**
+     * 为一个射频模块创建协议栈实例
+     *
+     * @param stackConfig 该模块的协议栈配置回调
+     * @param stackComm 该模块的打包和解包回调
+     * @param options 该模块的可选调优参数
+     * @return 协议栈实例
+     */
+    public synchronized StackContext newStack(IConfig stackConfig, IComm stackComm, StackOptions options) {
+        if (cancelled) {
+            throw new IllegalStateException("StackGroup 已注销");
+        }
+        StackContext stack = new StackContext(stackConfig, stackComm, options, bufferPool, chunkPool);
+        stacks.add(stack);
+        return stack;
+    }
+
+    /**
+     * 当前创建的协议栈实例个数
+     */
+    public synchronized int size() {
+        return stacks.size();
+    }
+
+    /**
+     * 注销所有协议栈实例
+     */
+    public synchronized void cancelGroup() {
+        cancelled = true;
+        for (StackContext stack : stacks) {
+            stack.cancelStack();
+        }
+        stacks.clear();
+        bufferPool.clear();
+        chunkPool.clear();
+    }
+}
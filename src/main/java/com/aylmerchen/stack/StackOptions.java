@@ -0,0 +1,165 @@
+package com.aylmerchen.stack;
+
+/**
+ * 协议栈的可选调优参数，创建 {@link StackContext} 时传入，之后修改不影响已创建的实例
+ * 所有参数都有默认值，不设置时与原有行为一致或取保守值
+ */
+public class StackOptions {
+
+    /**
+     * 默认的物理层发送窗口，每个蓝牙包都等待外设确认
+     */
+    public static final int DEFAULT_PHY_SEND_WINDOW = 1;
+
+    /**
+     * 默认的自适应帧间隔下限，单位 ms
+     */
+    public static final long DEFAULT_MIN_FRAME_GAP = 1;
+
+    /**
+     * 默认的自适应帧间隔上限，单位 ms，小于 {@link IConfig#getFrameGap()} 时按后者处理
+     */
+    public static final long DEFAULT_MAX_FRAME_GAP = 200;
+
+    /**
+     * 默认的短信息最长合并等待时间，单位 ms
+     */
+    public static final long DEFAULT_COALESCE_DELAY = 20;
+
+    /**
+     * 默认的流式发送端保留帧数
+     */
+    public static final int DEFAULT_STREAM_RETAIN_FRAMES = 64;
+
+    private int phySendWindow = DEFAULT_PHY_SEND_WINDOW;
+
+    private long minFrameGap = DEFAULT_MIN_FRAME_GAP;
+
+    private long maxFrameGap = DEFAULT_MAX_FRAME_GAP;
+
+    private long coalesceDelay = DEFAULT_COALESCE_DELAY;
+
+    private int streamRetainFrames = DEFAULT_STREAM_RETAIN_FRAMES;
+
+    private boolean compactNwkHeader;
+
+    private int relaySuppressThreshold;
+
+    private long relayBackoffWindow;
+
+    private long helloInterval;
+
+    public int getPhySendWindow() {
+        return phySendWindow;
+    }
+
+    /**
+     * 设置物理层发送窗口，即最多允许同时等待外设写完成回调的蓝牙包个数，外设只能缓存一个写操作时应为 1
+     * @param phySendWindow 发送窗口大小，小于 1 时按 1 处理，默认 {@link #DEFAULT_PHY_SEND_WINDOW}
+     * @return this
+     */
+    public StackOptions setPhySendWindow(int phySendWindow) {
+        this.phySendWindow = Math.max(1, phySendWindow);
+        return this;
+    }
+
+    public long getMinFrameGap() {
+        return minFrameGap;
+    }
+
+    public long getMaxFrameGap() {
+        return maxFrameGap;
+    }
+
+    /**
+     * 设置自适应帧间隔的范围，初始值为 {@link IConfig#getFrameGap()}
+     * @param minFrameGap 帧间隔下限，单位 ms，默认 {@link #DEFAULT_MIN_FRAME_GAP}
+     * @param maxFrameGap 帧间隔上限，单位 ms，小于下限时按下限处理，默认 {@link #DEFAULT_MAX_FRAME_GAP}
+     * @return this
+     */
+    public StackOptions setFrameGapRange(long minFrameGap, long maxFrameGap) {
+        this.minFrameGap = Math.max(0L, minFrameGap);
+        this.maxFrameGap = Math.max(this.minFrameGap, maxFrameGap);
+        return this;
+    }
+
+    public long getCoalesceDelay() {
+        return coalesceDelay;
+    }
+
+    /**
+     * 设置短信息的最长合并等待时间，见 {@link SendOptions#setCoalesced(boolean)}
+     * @param coalesceDelay 等待时间，单位 ms，默认 {@link #DEFAULT_COALESCE_DELAY}
+     * @return this
+     */
+    public StackOptions setCoalesceDelay(long coalesceDelay) {
+        this.coalesceDelay = Math.max(0L, coalesceDelay);
+        return this;
+    }
+
+    public int getStreamRetainFrames() {
+        return streamRetainFrames;
+    }
+
+    /**
+     * 设置流式发送端保留的最近发送帧数，见 {@link StackContext#sendStream}，只有保留范围内的帧才能按 NACK 重传
+     * 接收端最多暂存 32 个乱序帧，超出后立即请求重传，保留帧数应大于这个值并留出 NACK 往返期间继续发出的帧
+     * @param streamRetainFrames 保留帧数，小于 1 时按 1 处理，默认 {@link #DEFAULT_STREAM_RETAIN_FRAMES}
+     * @return this
+     */
+    public StackOptions setStreamRetainFrames(int streamRetainFrames) {
+        this.streamRetainFrames = Math.max(1, streamRetainFrames);
+        return this;
+    }
+
+    public boolean isCompactNwkHeader() {
+        return compactNwkHeader;
+    }
+
+    /**
+     * 设置网络层发送时是否使用紧凑帧头，帧头从 28 字节缩短为 13 字节
+     * 两种帧头可以在同一网络中共存，转发时保持原帧头格式；旧版本节点无法识别紧凑帧头，应在网络中所有节点都升级后再开启
+     * @param compactNwkHeader 是否使用紧凑帧头，默认不使用
+     * @return this
+     */
+    public StackOptions setCompactNwkHeader(boolean compactNwkHeader) {
+        this.compactNwkHeader = compactNwkHeader;
+        return this;
+    }
+
+    public int getRelaySuppressThreshold() {
+        return relaySuppressThreshold;
+    }
+
+    public long getRelayBackoffWindow() {
+        return relayBackoffWindow;
+    }
+
+    /**
+     * 设置泛洪转发的抑制参数：中继随机退避期间收到的同一帧份数（包括第一次收到的那一份）达到阈值时不再转发，
+     * 密集网络中可减少同时转发造成的广播风暴
+     * @param threshold 份数阈值，小于 2 时关闭抑制，收到即转发，默认关闭
+     * @param backoffWindow 随机退避的最大时长，单位 ms
+     * @return this
+     */
+    public StackOptions setRelaySuppression(int threshold, long backoffWindow) {
+        this.relaySuppressThreshold = threshold;
+        this.relayBackoffWindow = Math.max(0L, backoffWindow);
+        return this;
+    }
+
+    public long getHelloInterval() {
+        return helloInterval;
+    }
+
+    /**
+     * 设置网络层 HELLO 帧的发送周期
+     * 开启后邻居间交换一跳邻居列表，每个节点选出能覆盖全部两跳邻居的多点中继，泛洪帧只由上一跳选出的中继转发
+     * @param helloInterval 发送周期，单位 ms，为 0 时关闭，所有邻居照常转发，默认关闭
+     * @return this
+     */
+    public StackOptions setHelloInterval(long helloInterval) {
+        this.helloInterval = Math.max(0L, helloInterval);
+        return this;
+    }
+}
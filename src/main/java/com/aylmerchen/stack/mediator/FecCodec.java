@@ -0,0 +1,145 @@
+package com.aylmerchen.stack.mediator;
+
+/**
+ * 帧流的前向纠错编解码，基于 GF(256) 上的 Reed-Solomon 码（Cauchy 矩阵构造）
+ * 帧流的数据帧按组编码，每组 blockSize 个数据帧生成 repairCount 个修复帧，
+ * 同一组中任意丢失不超过 repairCount 个数据帧时，接收端都能用收到的修复帧还原，无需反向通信
+ * 最后一帧长度不足时按补 0 参与编码，编码时数据帧序号在组内从 0 开始
+ */
+final class FecCodec {
+
+    /**
+     * GF(256) 的本原多项式 x^8 + x^4 + x^3 + x^2 + 1
+     */
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[512];
+
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= PRIMITIVE_POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private FecCodec() {
+    }
+
+    private static int mul(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inv(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * 编码系数，Cauchy 矩阵 1 / (x + y)，x = blockSize + repairIndex, y = dataIndex，
+     * 所以要求 blockSize + repairCount <= 256，此时任意方阵子矩阵都可逆
+     * @param repairIndex 修复帧在组内的序号
+     * @param dataIndex 数据帧在组内的序号
+     * @param blockSize 每组的数据帧个数
+     */
+    static int coefficient(int repairIndex, int dataIndex, int blockSize) {
+        return inv((blockSize + repairIndex) ^ dataIndex);
+    }
+
+    /**
+     * dst[k] ^= coef * src[srcOffset + k]，src 不足 length 的部分按 0 处理
+     */
+    static void mulAdd(byte[] dst, byte[] src, int srcOffset, int length, int coef) {
+        if (coef == 0) {
+            return;
+        }
+        int logCoef = LOG[coef];
+        int end = Math.min(length, src.length - srcOffset);
+        for (int k = 0; k < end; k++) {
+            int value = src[srcOffset + k] & 0xFF;
+            if (value != 0) {
+                dst[k] ^= (byte) EXP[logCoef + LOG[value]];
+            }
+        }
+    }
+
+    /**
+     * 生成修复帧的数据部分
+     * @param message 待发送的完整数据
+     * @param rowSize 单帧数据长度
+     * @param firstFrame 本组第一个数据帧的帧序号
+     * @param count 本组的数据帧个数，最后一组可能少于 blockSize
+     * @param blockSize 每组的数据帧个数
+     * @param repairIndex 修复帧在组内的序号
+     * @return 长度为 rowSize 的修复数据
+     */
+    static byte[] encode(byte[] message, int rowSize, int firstFrame, int count, int blockSize, int repairIndex) {
+        byte[] parity = new byte[rowSize];
+        for (int i = 0; i < count; i++) {
+            int offset = (firstFrame + i) * rowSize;
+            mulAdd(parity, message, offset, rowSize, coefficient(repairIndex, i, blockSize));
+        }
+        return parity;
+    }
+
+    /**
+     * 在 GF(256) 上解线性方程组 matrix * x = rows，结果写回 rows
+     * @param matrix n × n 系数矩阵，会被修改
+     * @param rows n 行等长数据
+     * @return 矩阵不可逆时返回 false
+     */
+    static boolean solve(int[][] matrix, byte[][] rows) {
+        int n = matrix.length;
+        for (int col = 0; col < n; col++) {
+
+            int pivot = col;
+            while (pivot < n && matrix[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                return false;
+            }
+            if (pivot != col) {
+                int[] tempRow = matrix[pivot];
+                matrix[pivot] = matrix[col];
+                matrix[col] = tempRow;
+                byte[] tempData = rows[pivot];
+                rows[pivot] = rows[col];
+                rows[col] = tempData;
+            }
+
+            // 主元归一
+            int scale = inv(matrix[col][col]);
+            for (int j = 0; j < n; j++) {
+                matrix[col][j] = mul(matrix[col][j], scale);
+            }
+            byte[] scaled = new byte[rows[col].length];
+            mulAdd(scaled, rows[col], 0, scaled.length, scale);
+            rows[col] = scaled;
+
+            // 消去其他行的这一列
+            for (int r = 0; r < n; r++) {
+                int factor = matrix[r][col];
+                if (r == col || factor == 0) {
+                    continue;
+                }
+                for (int j = 0; j < n; j++) {
+                    matrix[r][j] ^= mul(factor, matrix[col][j]);
+                }
+                mulAdd(rows[r], rows[col], 0, rows[r].length, factor);
+            }
+        }
+        return true;
+    }
+}
@@ -1,5 +1,7 @@
 package com.aylmerchen.stack.mediator;
 
+import java.io.InputStream;
+
 /**
  * 适配层接口
  * @author Lasern
@@ -12,6 +14,71 @@ public interface IMediator {
      */
     int HEAD_SIZE = 6;
 
+    /**
+     * 扩展帧头长度，在普通帧头之后多一个字节的帧流标志
+     */
+    int EXT_HEAD_SIZE = HEAD_SIZE + 1;
+
+    /**
+     * 扩展帧头标识，位于帧总数字段的最高位
+     * 这是帧格式的不兼容变更：旧版本把该位当作帧总数的一部分，会把扩展帧误认为 32768 帧以上的帧流、把帧流标志当作数据，
+     * 只能等待超时后丢弃；同时帧总数上限从 65535 降为 32767。不设置任何帧流标志时仍使用普通帧头，与旧版本互通，
+     * 选择重传、压缩、合并、流式和前向纠错等发送选项应在网络中所有节点都升级后再使用
+     */
+    int FLAG_EXTENDED = 0x8000;
+
+    /**
+     * 帧流标志：发送端会保留该帧流一段时间，接收端可以用 NACK 请求只重传丢失的帧
+     */
+    int STREAM_FLAG_SELECTIVE_REPEAT = 0x01;
+
+    /**
+     * 帧流标志：数据在拆分前经过 Deflate 压缩，接收端重组后解压缩
+     */
+    int STREAM_FLAG_COMPRESSED = 0x02;
+
+    /**
+     * 帧流标志：数据由多条短信息合并而成，每条记录为 长度(1) | 数据，接收端拆开后逐条交给上层
+     */
+    int STREAM_FLAG_COALESCED = 0x04;
+
+    /**
+     * 帧流标志：流式发送的大块数据，接收端注册了 {@link StreamSink} 时按序逐帧交付，不在内存中拼出整条信息
+     */
+    int STREAM_FLAG_STREAMING = 0x08;
+
+    /**
+     * 帧流标志：前向纠错，每组数据帧之后附加若干修复帧，接收端无需反向通信即可还原每组中丢失的帧
+     * 帧头中只有低 8 位的帧流标志，打开帧流时 streamFlags 的 8~15 位为每组数据帧个数，16~23 位为每组修复帧个数，
+     * 见 {@link #FEC_BLOCK_SHIFT} 和 {@link #FEC_REPAIR_SHIFT}
+     */
+    int STREAM_FLAG_FEC = 0x10;
+
+    /**
+     * streamFlags 中每组数据帧个数的位置
+     */
+    int FEC_BLOCK_SHIFT = 8;
+
+    /**
+     * streamFlags 中每组修复帧个数的位置
+     */
+    int FEC_REPAIR_SHIFT = 16;
+
+    /**
+     * 重组内存淘汰策略：淘汰最久没有收到新帧的帧流，默认策略
+     */
+    int EVICT_OLDEST = 0;
+
+    /**
+     * 重组内存淘汰策略：淘汰占用内存最多的帧流，优先保住小帧流
+     */
+    int EVICT_LARGEST = 1;
+
+    /**
+     * 重组内存淘汰策略：不淘汰正在重组的帧流，内存不足时丢弃新到达的帧
+     */
+    int EVICT_NONE = 2;
+
     /**
      * 接收缓冲相对于发送缓冲的冗余大小
      */
@@ -24,6 +91,26 @@ public interface IMediator {
      */
     void packaging(long destAddress, byte[] data);
 
+    /**
+     * 把待发送数据拆分为帧流，由调用者逐帧取出发送，以便在帧与帧之间插入其他帧流的帧
+     * @param destAddress 上层传来的发送信息的目的地址
+     * @param data 待发送数据
+     * @param streamFlags 帧流标志，如 {@link #STREAM_FLAG_SELECTIVE_REPEAT}，为 0 时使用普通帧头
+     * @return 待发送的帧流
+     */
+    FrameStream openStream(long destAddress, byte[] data, int streamFlags);
+
+    /**
+     * 把输入流中的数据拆分为流式帧流，每生成一帧才从输入流读取一帧的数据
+     * 接收端缺帧时按 NACK 请求重传，发送端保留最近发出的帧用于重传
+     * @param destAddress 上层传来的发送信息的目的地址
+     * @param in 待发送数据的输入流
+     * @param length 待发送数据的长度，接收端据此得知帧总数，为 0 时发送一个空帧
+     * @return 待发送的帧流，读取输入流出错或数据不足时 {@link FrameStream#nextFrame()} 抛出 IllegalStateException
+     * @throws IllegalArgumentException length 为负数或超过单个帧流能承载的长度
+     */
+    FrameStream openStream(long destAddress, InputStream in, int length);
+
 
     /**
      * 接收时的解包方法
@@ -38,6 +125,54 @@ public interface IMediator {
      */
     void cancelLayer();
 
+    /**
+     * 待发送的帧流，非线程安全，生成帧时会使用本层的发送缓冲，需要与其他发送操作互斥
+     */
+    interface FrameStream {
+
+        /**
+         * @return 本帧流的目的地址
+         */
+        long getDestAddress();
+
+        /**
+         * @return 本帧流的帧总数
+         */
+        int getFrameCount();
+
+        /**
+         * @return 是否还有未发送的帧
+         */
+        boolean hasNextFrame();
+
+        /**
+         * 生成下一个待发送的帧
+         * @return 打包完成的帧
+         */
+        byte[] nextFrame();
+    }
+
+    /**
+     * 流式帧流的接收者，按帧序号依次收到数据，最后收到结束或中止通知之一
+     */
+    interface StreamSink {
+
+        /**
+         * 按序收到一帧的数据
+         */
+        void onData(byte[] data);
+
+        /**
+         * 所有数据都已收到
+         */
+        void onEnd();
+
+        /**
+         * 帧流接收超时或被淘汰，不会再收到数据
+         */
+        void onAbort();
+    }
+
     /**
      * 打包、解包完成对外所暴露的接口
      */
@@ -57,9 +192,28 @@ public interface IMediator {
         void unPackageFinish(long srcAddress, byte[] receiveData);
 
         /**
-         * 获取外部设置的蓝牙帧间隔
-         * @return 帧间隔，单位 ms
+         * 帧与帧之间的暂停，由外部根据物理层的排空情况决定暂停时长
+         */
+        void pauseBetweenFrames();
+
+        /**
+         * 获取本机地址，用于判断收到的 NACK 是否是发给自己的
+         * @return 本机地址
+         */
+        long getMyAddress();
+
+        /**
+         * 本层自己产生的待发送帧流，如 NACK 和重传帧，由外部交给发送队列调度发送
+         * @param stream 待发送的帧流
+         */
+        void submitStream(FrameStream stream);
+
+        /**
+         * 开始接收流式帧流时获取其接收者
+         * @param srcAddress 源地址
+         * @param frameCount 帧总数
+         * @return 接收者，为 null 时按普通信息整条重组后交给 {@link #unPackageFinish(long, byte[])}
          */
-        long getFrameGap();
+        StreamSink openStreamSink(long srcAddress, int frameCount);
     }
 }
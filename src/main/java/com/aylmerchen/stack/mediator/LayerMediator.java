@@ -2,10 +2,22 @@ package com.aylmerchen.stack.mediator;
 
 import android.util.Log;
 
+import com.aylmerchen.stack.nwk.INwk;
 import com.aylmerchen.stack.util.BaseBuffer;
+import com.aylmerchen.stack.util.BufferPool;
+import com.aylmerchen.stack.util.ChunkPool;
+import com.aylmerchen.stack.util.HashedWheelTimer;
 import com.aylmerchen.stack.util.MyTimer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static com.aylmerchen.stack.BuildConfig.debug;
 
@@ -25,12 +37,86 @@ public class LayerMediator implements IMediator {
     private static final int FRAME_TIMEOUT = 20000;
 
     /**
-     * 每次最多允许发送的帧数，即最多可拆分的包数，最大是 65536, 因为当前帧序号字段由 2 字节组成
+     * 每次最多允许发送的帧数，即最多可拆分的包数，帧总数字段的最高位是扩展帧头标识，所以最大是 32767
+     * 旧版本允许 65535 帧，这里是帧格式的不兼容变更，见 {@link IMediator#FLAG_EXTENDED}
      */
-    private static final int FRAME_MAX_COUNT = 65536;
+    private static final int FRAME_MAX_COUNT = 0x7FFF;
 
+    /**
+     * 帧流标识的取值范围 0 ~ 65535
+     */
+    private static final int STREAM_ID_RANGE = 0x10000;
+
+    /**
+     * 控制帧类型：NACK，接收端请求发送端重传丢失的帧
+     * 控制帧的帧总数字段为 0，NACK 发往广播地址，由帧中的帧流发送者地址确定处理者，帧结构：
+     * 数据流标识(2) | 0(2) | 控制帧类型(1) | 帧流发送者地址(5) | 帧总数(2) | 位图起始帧序号(2) | 丢失帧位图(n)
+     */
+    private static final byte CTRL_NACK = 1;
+
+    /**
+     * NACK 帧除位图外的长度
+     */
+    private static final int NACK_HEAD_SIZE = HEAD_SIZE - 2 + 1 + 5 + 2 + 2;
+
+    /**
+     * 控制帧类型：修复帧，前向纠错帧流中每组数据帧之后的冗余帧，帧结构：
+     * 数据流标识(2) | 0(2) | 控制帧类型(1) | 帧流标志(1) | 帧总数(2) | 每组数据帧数(1) | 组内序号(1) | 组号(2) | 数据总长度(4) | 修复数据(n)
+     * 修复数据与数据帧的数据部分等长，所以前向纠错帧流的单帧数据长度按修复帧的帧头计算
+     */
+    private static final byte CTRL_REPAIR = 2;
+
+    /**
+     * 修复帧除修复数据外的长度
+     */
+    private static final int REPAIR_HEAD_SIZE = HEAD_SIZE - 2 + 1 + 1 + 2 + 1 + 1 + 2 + 4;
+
+    /**
+     * 前向纠错默认的每组数据帧个数
+     */
+    private static final int DEFAULT_FEC_BLOCK_SIZE = 16;
+
+    /**
+     * 选择重传帧流在接收停滞多久后发送 NACK，单位 ms
+     */
+    private static final int NACK_DELAY = 3000;
+
+    /**
+     * 没有新的帧到达时，最多连续发送 NACK 的次数
+     */
+    private static final int MAX_NACK_ROUNDS = 3;
+
+    /**
+     * 流式发送端默认保留最近发送的帧数，接收端 NACK 的帧在此范围内时才能重传
+     */
+    private static final int DEFAULT_STREAM_RETAIN_FRAMES = 64;
+
+    /**
+     * 发送端最多保留的选择重传帧流个数
+     */
+    private static final int MAX_RETAINED_STREAMS = 8;
+
+    /**
+     * 发送端保留选择重传帧流的时长，单位 ms
+     */
+    private static final int RETAIN_TIMEOUT = 60000;
+
+    /**
+     * 最多同时重组的多帧帧流个数
+     */
+    private static final int MAX_REASSEMBLY_STREAMS = 16;
 
 
+    /**
+     * 单帧最大长度（字节），即广播帧的单帧最大长度
+     */
+    private final int FRAME_MAX_SIZE;
+
+    /**
+     * 单播帧的单帧最大长度（字节），单播的网络层帧头更长，不大于 {@link #FRAME_MAX_SIZE}
+     */
+    private final int FRAME_MAX_SIZE_UNICAST;
+
     /**
      * 每一帧最大携带的纯数据量（字节)
      */
@@ -52,32 +138,54 @@ public class LayerMediator implements IMediator {
     private BaseBuffer receBuffer;
 
     /**
-     * 用于缓存接收的所有帧的数据部分
+     * 帧流重组表，缓存同时在接收的多个帧流的数据部分，接收缓冲从缓冲池中获取，接收结束后归还
+     * 接收线程和定时器线程都会访问，使用时需要加锁
+     */
+    private final ReassemblyTable reassemblyTable;
+
+    /**
+     * 已发送完的选择重传帧流和正在发送的流式帧流
+     */
+    private final RetransmitStore<RetainedStream> retransmitStore = new RetransmitStore<>(MAX_RETAINED_STREAMS, RETAIN_TIMEOUT);
+
+    /**
+     * 下一个帧流标识，逐个递增并在取值范围内回绕，同一发送端的标识在接收端记住已完成帧流的时间内不会重复
+     * 起始值随机，重启后的发送端不会沿用接收端还记着的标识
+     */
+    private final AtomicInteger nextStreamId = new AtomicInteger(new Random().nextInt(STREAM_ID_RANGE));
+
+    /**
+     * 接收缓冲池，重组和解压缩时使用
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * 压缩器，只在发送线程中使用，使用时加锁
      */
-    private BaseBuffer receCache;
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
 
     /**
-     * 记录本次传输的发信的源地址
+     * 解压缩器，只在接收线程中使用，使用时加锁
      */
-    private long srcAddress = -1;
+    private final Inflater inflater = new Inflater();
 
     /**
-     * 记录本次传输的帧流 id
+     * 压缩器和解压缩器已在注销时释放，之后不能再使用，在持有对应的锁时读写
      */
-    private int currentFrameStreamId = -1;
+    private volatile boolean codecReleased;
 
     /**
-     * 记录本次传输的帧总数
+     * 收发双方共享的压缩预设字典，为 null 时不使用字典
      */
-    private int currentFrameNum = -1;
+    private volatile byte[] compressionDictionary;
 
     /**
-     * 记录当前传输的帧 id 以便和后续的帧比较
+     * 流式发送端保留最近发送的帧数
      */
-    private int lastFrameId = -1;
+    private volatile int streamRetainFrames = DEFAULT_STREAM_RETAIN_FRAMES;
 
     /**
-     * 帧超时定时器
+     * 帧超时定时器，总是按重组表中最早的超时或 NACK 时刻启动
      */
     private MyTimer frameTimer;
 
@@ -92,22 +200,37 @@ public class LayerMediator implements IMediator {
     private LayerCallback layerCallback;
 
     public LayerMediator(int bufferSize, LayerCallback callback) {
+        this(bufferSize, bufferSize, new MyTimer(), new BufferPool(), new ChunkPool(), callback);
+    }
 
+    /**
+     * @param bufferSize 广播帧的单帧最大长度
+     * @param unicastBufferSize 单播帧的单帧最大长度，不大于 bufferSize
+     * @param frameTimer 帧超时定时器
+     * @param bufferPool 接收缓冲池，解压缩时使用，可以由多个协议栈实例共享
+     * @param chunkPool 重组内存块池，可以由多个协议栈实例共享，其总字节数上限即重组占用的内存上限
+     * @param callback 本层对外的回调接口
+     */
+    public LayerMediator(int bufferSize, int unicastBufferSize, MyTimer frameTimer, BufferPool bufferPool, ChunkPool chunkPool, LayerCallback callback) {
+
+        FRAME_MAX_SIZE = bufferSize;
+        FRAME_MAX_SIZE_UNICAST = Math.min(unicastBufferSize, bufferSize);
         FRAME_MAX_ROW_DATA_SIZE = bufferSize - HEAD_SIZE;
         FRAME_STREAM_MAX_SIZE = FRAME_MAX_ROW_DATA_SIZE * FRAME_MAX_COUNT;
 
         layerCallback = callback;
+        this.bufferPool = bufferPool;
 
         sendBuffer = new BaseBuffer(bufferSize + EXTRA_SIZE);
         receBuffer = new BaseBuffer(bufferSize + EXTRA_SIZE);
 
-        frameTimer = new MyTimer();
-        frameTimer.initTimer();
+        reassemblyTable = new ReassemblyTable(chunkPool, MAX_REASSEMBLY_STREAMS);
+
+        this.frameTimer = frameTimer;
         frameTimeoutTask = new Runnable() {
             @Override
             public void run() {
-                Log.e(TAG, "帧接收超时");
-                resetReceiveState();
+                checkReceiveTimeout();
             }
         };
     }
@@ -119,82 +242,595 @@ public class LayerMediator implements IMediator {
      *
      *  帧结构：
      *  数据流标识(2) |   帧总数(2)  |    当前帧序号(2)  | 数据(<=108)  |
-     *  随机生成     |  最多65536帧  |   表明是第几帧    |   拆分的数据  |
+     *  随机生成     |  最多32767帧  |   表明是第几帧    |   拆分的数据  |
+     *
+     *  使用帧流标志时帧总数字段的最高位置 1，帧头后多一个字节的帧流标志：
+     *  数据流标识(2) |   帧总数(2)  |    当前帧序号(2)  | 帧流标志(1) | 数据(<=107)  |
+     *  压缩标志表示拆分的是压缩后的数据，压缩后不能变小时自动去掉该标志
      *
      * @param rowMessage  待发送的数据
      */
     @Override
     public void packaging(long destAddress, byte[] rowMessage) {
-        if ( rowMessage.length <= 0) {
-            return ;
+
+        FrameStream stream = openStream(destAddress, rowMessage, 0);
+
+        while (stream.hasNextFrame()) {
+
+            // 把帧交给协议栈上下文，由上下文转交给下一层去处理，这里之后的一层是路由层
+            layerCallback.packageFinish(destAddress, stream.nextFrame());
+
+            // TODO 除最后一帧外，每帧发送之间都需要暂停，给外设硬件处理时间，提升蓝牙速度后，可以加入 ack
+            if (stream.hasNextFrame()) {
+                pauseBetweenFrames();
+                if (debug) {
+                    Log.e(TAG, "帧流恢复发送");
+                }
+            }
         }
+    }
+
+    @Override
+    public FrameStream openStream(long destAddress, byte[] rowMessage, int streamFlags) {
+
+        int blockSize = 0;
+        int repairCount = 0;
+        if ((streamFlags & STREAM_FLAG_FEC) != 0) {
+            blockSize = (streamFlags >>> FEC_BLOCK_SHIFT) & 0xFF;
+            repairCount = (streamFlags >>> FEC_REPAIR_SHIFT) & 0xFF;
+            if (blockSize == 0) {
+                blockSize = DEFAULT_FEC_BLOCK_SIZE;
+            }
+            // 编码要求每组数据帧和修复帧合计不超过 256
+            repairCount = Math.min(repairCount, 256 - blockSize);
+        }
+        streamFlags &= 0xFF;
+        if (repairCount == 0) {
+            streamFlags &= ~STREAM_FLAG_FEC;
+        }
+
+        // 扩展帧头多占一个字节，前向纠错帧流的数据长度受修复帧的帧头限制
+        int frameSize = frameMaxSize(destAddress);
+        int rowSize;
+        if (streamFlags == 0) {
+            rowSize = frameSize - HEAD_SIZE;
+        } else if ((streamFlags & STREAM_FLAG_FEC) != 0) {
+            rowSize = frameSize - REPAIR_HEAD_SIZE;
+        } else {
+            rowSize = frameSize - HEAD_SIZE - 1;
+        }
+        int maxSize = rowSize * FRAME_MAX_COUNT;
 
         byte[] message;
 
         // 如果待发送信息超过允许范围则截断数据
-        if ( rowMessage.length > FRAME_STREAM_MAX_SIZE) {
-            message = new byte[FRAME_STREAM_MAX_SIZE];
-            System.arraycopy(rowMessage, 0, message, 0, FRAME_STREAM_MAX_SIZE);
+        if ( rowMessage.length > maxSize) {
+            message = new byte[maxSize];
+            System.arraycopy(rowMessage, 0, message, 0, maxSize);
         } else {
             message = rowMessage;
         }
 
-        // 计算数据帧的总帧数
-        int consult = message.length / FRAME_MAX_ROW_DATA_SIZE;
-        int remainder = message.length % FRAME_MAX_ROW_DATA_SIZE;
-        int frameNum = ( remainder == 0 )? consult : consult + 1;
+        if ((streamFlags & STREAM_FLAG_COMPRESSED) != 0) {
+            byte[] compressed = compress(message);
+            if (compressed != null) {
+                message = compressed;
+            } else {
+                streamFlags &= ~STREAM_FLAG_COMPRESSED;
+                if (streamFlags == 0) {
+                    rowSize = frameSize - HEAD_SIZE;
+                }
+            }
+        }
+
+        return new OutStream(destAddress, message, streamFlags, rowSize, blockSize, repairCount);
+    }
+
+    @Override
+    public FrameStream openStream(long destAddress, InputStream in, int length) {
+        int rowSize = frameMaxSize(destAddress) - HEAD_SIZE - 1;
+        int maxSize = rowSize * FRAME_MAX_COUNT;
+        if (length < 0 || length > maxSize) {
+            throw new IllegalArgumentException("流式发送的数据长度超出范围:" + length + "，最大为 " + maxSize);
+        }
+        return new InputFrameStream(destAddress, in, length, rowSize);
+    }
+
+    /**
+     * 发往目的地址的单帧最大长度，单播帧的网络层帧头更长，能携带的数据更少
+     */
+    private int frameMaxSize(long destAddress) {
+        return destAddress == INwk.BROADCAST_ADDRESS ? FRAME_MAX_SIZE : FRAME_MAX_SIZE_UNICAST;
+    }
+
+    /**
+     * 分配一个新的帧流标识
+     */
+    private int newStreamId() {
+        return nextStreamId.getAndIncrement() & (STREAM_ID_RANGE - 1);
+    }
+
+    /**
+     * 可以按 NACK 重传的帧流
+     */
+    private interface RetainedStream {
+
+        long getDestAddress();
+
+        /**
+         * 数据帧总数，不含修复帧
+         */
+        int getDataFrameCount();
+
+        /**
+         * 是否还能重新生成指定序号的数据帧
+         */
+        boolean isRetained(int frameId);
+
+        /**
+         * 重新生成指定序号的数据帧
+         */
+        byte[] getFrame(int frameId);
+    }
+
+    /**
+     * 流式发送的帧流，每生成一帧才从输入流读取一帧的数据
+     * 输入流不能回读，所以保留最近发送的若干帧，供接收端用 NACK 请求重传，见 {@link #setStreamRetainFrames(int)}
+     * 长度为 0 时也发送一个空的数据帧，接收端据此打开并结束接收者
+     */
+    private final class InputFrameStream implements FrameStream, RetainedStream {
+
+        private final long destAddress;
+
+        private final InputStream in;
+
+        private final int length;
+
+        private final int rowSize;
+
+        private final int frameStreamID;
+
+        private final int frameNum;
+
+        /**
+         * 写线程生成帧，接收线程处理 NACK 时读取
+         */
+        private volatile int frameID;
+
+        /**
+         * 最近发送的帧，按帧序号循环存放
+         */
+        private final byte[][] sentFrames;
+
+        private InputFrameStream(long destAddress, InputStream in, int length, int rowSize) {
+            this.destAddress = destAddress;
+            this.in = in;
+            this.length = length;
+            this.rowSize = rowSize;
+            this.frameNum = Math.max(1, (length + rowSize - 1) / rowSize);
+            this.frameStreamID = newStreamId();
+            this.sentFrames = new byte[Math.min(frameNum, streamRetainFrames)][];
+
+            if (debug) {
+                Log.e(TAG, "待发送流式帧流的总长度:" + length + ", 帧流ID:" + frameStreamID + ", 帧总数:" + frameNum);
+            }
+        }
+
+        @Override
+        public long getDestAddress() {
+            return destAddress;
+        }
+
+        @Override
+        public int getFrameCount() {
+            return frameNum;
+        }
+
+        @Override
+        public boolean hasNextFrame() {
+            return frameID < frameNum;
+        }
+
+        @Override
+        public byte[] nextFrame() {
+            byte[] data = new byte[Math.min(rowSize, length - frameID * rowSize)];
+            try {
+                int position = 0;
+                while (position < data.length) {
+                    int count = in.read(data, position, data.length - position);
+                    if (count < 0) {
+                        throw new IllegalStateException("输入流的数据不足，帧序号:" + frameID);
+                    }
+                    position += count;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("读取输入流出错，帧序号:" + frameID, e);
+            }
+
+            byte[] frame = getSendBytes(frameStreamID, frameNum, frameID, STREAM_FLAG_STREAMING, data);
+            sentFrames[frameID % sentFrames.length] = frame;
+            frameID++;
+
+            // 多帧的流式帧流在发送期间和发送完后都要能响应 NACK，每帧都重新计时
+            if (frameNum > 1) {
+                retransmitStore.put(frameStreamID, this, HashedWheelTimer.now());
+            }
+            return frame;
+        }
+
+        @Override
+        public int getDataFrameCount() {
+            return frameNum;
+        }
+
+        @Override
+        public boolean isRetained(int frameId) {
+            int sent = frameID;
+            return frameId < sent && frameId >= sent - sentFrames.length;
+        }
+
+        /**
+         * 重传时该帧可能已被更新的帧覆盖，此时发出的是更新的帧，帧头中带有各自的帧序号，接收端按重复帧处理
+         */
+        @Override
+        public byte[] getFrame(int frameId) {
+            return sentFrames[frameId % sentFrames.length];
+        }
+    }
+
+    /**
+     * 设置流式发送端保留的最近发送帧数，只影响之后打开的帧流
+     * 接收端暂存的乱序帧过多时立即发送 NACK，保留帧数应大于接收端的暂存上限，缺口的帧才不会在 NACK 到达前被覆盖
+     * @param frames 保留帧数，小于 1 时按 1 处理，默认 {@link #DEFAULT_STREAM_RETAIN_FRAMES}
+     */
+    public void setStreamRetainFrames(int frames) {
+        this.streamRetainFrames = Math.max(1, frames);
+    }
+
+    /**
+     * 设置重组内存不足时的淘汰策略
+     * @param evictionPolicy {@link #EVICT_OLDEST}, {@link #EVICT_LARGEST} 或 {@link #EVICT_NONE}
+     */
+    public void setEvictionPolicy(int evictionPolicy) {
+        synchronized (reassemblyTable) {
+            reassemblyTable.setEvictionPolicy(evictionPolicy);
+        }
+    }
+
+    /**
+     * 设置压缩预设字典，收发双方必须使用相同的字典
+     * 字典中放入报文里常见的字段名和取值，可以显著提升短报文的压缩率
+     * @param dictionary 预设字典，为 null 时不使用字典
+     */
+    public void setCompressionDictionary(byte[] dictionary) {
+        this.compressionDictionary = dictionary;
+    }
+
+    /**
+     * 压缩待发送数据
+     * @return 压缩后的数据，压缩后没有变小或本层已注销时返回 null
+     */
+    private byte[] compress(byte[] message) {
+        byte[] output = new byte[message.length];
+        int length = 0;
+
+        synchronized (deflater) {
+            if (codecReleased) {
+                return null;
+            }
+            deflater.reset();
+            byte[] dictionary = compressionDictionary;
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(message);
+            deflater.finish();
 
-        // 帧流标识的范围 0 ~ 65535
-        int frameStreamID = new Random().nextInt(FRAME_MAX_COUNT);
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            if (!deflater.finished() || length >= message.length) {
+                return null;
+            }
+        }
 
         if (debug) {
-            Log.e(TAG, "待发送帧流的总长度:" + message.length + ", 帧流ID:" + frameStreamID + ", 帧总数:" + frameNum);
+            Log.e(TAG, "压缩前长度:" + message.length + ", 压缩后长度:" + length);
         }
 
-        int frameID = 0;
-        int position = 0;
-        int remainSize = message.length;
-        byte[] frame;
-        byte[] data = new byte[FRAME_MAX_ROW_DATA_SIZE];
+        byte[] compressed = new byte[length];
+        System.arraycopy(output, 0, compressed, 0, length);
+        return compressed;
+    }
 
-        while ( remainSize > 0 ) {
+    /**
+     * 解压缩接收到的数据，输出先写入缓冲池中的缓冲，不够时换用更大的缓冲
+     * @return 解压后的数据，数据损坏、缺少预设字典或超出最大帧流长度或本层已注销时返回 null
+     */
+    private byte[] decompress(byte[] data) {
+        BaseBuffer buffer = bufferPool.obtain(Math.min(FRAME_STREAM_MAX_SIZE, data.length * 4));
+        int length = 0;
 
-            if (remainSize < FRAME_MAX_ROW_DATA_SIZE) {
-                data = new byte[remainSize];
-                System.arraycopy(message, position, data, 0, remainSize);
-                frame = getSendBytes(frameStreamID, frameNum, frameID, data);
-            } else {
-                System.arraycopy(message, position, data, 0, FRAME_MAX_ROW_DATA_SIZE);
-                frame = getSendBytes(frameStreamID, frameNum, frameID, data);
+        try {
+            synchronized (inflater) {
+                if (codecReleased) {
+                    return null;
+                }
+                inflater.reset();
+                inflater.setInput(data);
+
+                while (!inflater.finished()) {
+                    if (length == buffer.getCapacity()) {
+                        if (length >= FRAME_STREAM_MAX_SIZE) {
+                            return null;
+                        }
+                        BaseBuffer larger = bufferPool.obtain(Math.min(FRAME_STREAM_MAX_SIZE, length * 2));
+                        System.arraycopy(buffer.array(), 0, larger.array(), 0, length);
+                        bufferPool.recycle(buffer);
+                        buffer = larger;
+                    }
+
+                    int count = inflater.inflate(buffer.array(), length, buffer.getCapacity() - length);
+                    length += count;
+
+                    if (count == 0 && inflater.needsDictionary()) {
+                        byte[] dictionary = compressionDictionary;
+                        if (dictionary == null) {
+                            Log.e(TAG, "解压缩失败：缺少预设字典");
+                            return null;
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (count == 0 && inflater.needsInput()) {
+                        return null;
+                    }
+                }
             }
+            return buffer.get(0, length);
+        } catch (DataFormatException | IllegalArgumentException e) {
+            Log.e(TAG, "解压缩失败：" + e.getMessage());
+            return null;
+        } finally {
+            bufferPool.recycle(buffer);
+        }
+    }
+
+    /**
+     * 待发送的帧流，每次生成其中的一帧，也可以按帧序号重新生成任意一帧用于重传
+     * 前向纠错帧流在每组数据帧之后紧接着发送该组的修复帧
+     */
+    private final class OutStream implements FrameStream, RetainedStream {
+
+        private final long destAddress;
+
+        private final byte[] message;
+
+        private final int streamFlags;
+
+        private final int rowSize;
+
+        private final int frameStreamID;
+
+        private final int frameNum;
+
+        private int frameID;
+
+        /**
+         * 前向纠错的每组数据帧个数和修复帧个数
+         */
+        private final int blockSize;
+
+        private final int repairCount;
+
+        /**
+         * 正在发送修复帧的组号，没有待发送的修复帧时为 -1
+         */
+        private int repairBlock = -1;
+
+        private int repairIndex;
+
+        private OutStream(long destAddress, byte[] message, int streamFlags, int rowSize, int blockSize, int repairCount) {
+            this.destAddress = destAddress;
+            this.message = message;
+            this.streamFlags = streamFlags;
+            this.rowSize = rowSize;
+
+            // 计算数据帧的总帧数
+            int consult = message.length / rowSize;
+            int remainder = message.length % rowSize;
+            this.frameNum = ( remainder == 0 )? consult : consult + 1;
 
-            position += FRAME_MAX_ROW_DATA_SIZE;
-            remainSize -= FRAME_MAX_ROW_DATA_SIZE;
+            // 单帧信息不经过重组，不需要修复帧
+            this.blockSize = blockSize;
+            this.repairCount = frameNum > 1 ? repairCount : 0;
+
+            this.frameStreamID = newStreamId();
 
             if (debug) {
-                Log.e(TAG, "发送第 " + frameID + " 帧, 帧长:" + frame.length);
+                Log.e(TAG, "待发送帧流的总长度:" + message.length + ", 帧流ID:" + frameStreamID + ", 帧总数:" + frameNum);
             }
+        }
 
+        @Override
+        public long getDestAddress() {
+            return destAddress;
+        }
 
-            // 把帧交给协议栈上下文，由上下文转交给下一层去处理，这里之后的一层是路由层
-            layerCallback.packageFinish(destAddress, frame);
+        @Override
+        public int getFrameCount() {
+            if (repairCount == 0) {
+                return frameNum;
+            }
+            return frameNum + (frameNum + blockSize - 1) / blockSize * repairCount;
+        }
 
-            // TODO 除最后一帧外，每帧发送之间都需要暂停，给外设硬件处理时间，提升蓝牙速度后，可以加入 ack
-            if (remainSize > 0) {
-                pauseBetweenFrames();
-                if (debug) {
-                    Log.e(TAG, "帧流恢复发送");
+        @Override
+        public boolean hasNextFrame() {
+            return frameID < frameNum || repairBlock >= 0;
+        }
+
+        @Override
+        public byte[] nextFrame() {
+            if (repairBlock >= 0) {
+                byte[] repair = getRepairFrame(repairBlock, repairIndex++);
+                if (repairIndex == repairCount) {
+                    repairBlock = -1;
                 }
+                return repair;
             }
 
-            frameID++;
+            byte[] frame = getFrame(frameID++);
+
+            // 一组数据帧发送完后接着发送该组的修复帧
+            if (repairCount > 0 && (frameID % blockSize == 0 || frameID == frameNum)) {
+                repairBlock = (frameID - 1) / blockSize;
+                repairIndex = 0;
+            }
+
+            // 选择重传的多帧帧流发送完后保留一段时间，等待接收端的 NACK
+            if (frameID == frameNum && frameNum > 1 && (streamFlags & STREAM_FLAG_SELECTIVE_REPEAT) != 0) {
+                retransmitStore.put(frameStreamID, this, HashedWheelTimer.now());
+            }
+            return frame;
+        }
+
+        @Override
+        public int getDataFrameCount() {
+            return frameNum;
+        }
+
+        @Override
+        public boolean isRetained(int frameId) {
+            return frameId < frameNum;
+        }
+
+        /**
+         * 生成指定序号的帧
+         */
+        @Override
+        public byte[] getFrame(int id) {
+            int position = id * rowSize;
+            int size = Math.min(message.length - position, rowSize);
+            byte[] data = new byte[size];
+            System.arraycopy(message, position, data, 0, size);
+            byte[] frame = getSendBytes(frameStreamID, frameNum, id, streamFlags, data);
+
+            if (debug) {
+                Log.e(TAG, "发送第 " + id + " 帧, 帧长:" + frame.length);
+            }
+            return frame;
+        }
+
+        /**
+         * 生成指定组的第 index 个修复帧
+         */
+        private byte[] getRepairFrame(int block, int index) {
+            int first = block * blockSize;
+            int count = Math.min(blockSize, frameNum - first);
+            byte[] parity = FecCodec.encode(message, rowSize, first, count, blockSize, index);
+
+            sendBuffer.putUnsignedShort(frameStreamID);
+            sendBuffer.putUnsignedShort(0);
+            sendBuffer.putByte(CTRL_REPAIR);
+            sendBuffer.putByte((byte) streamFlags);
+            sendBuffer.putUnsignedShort(frameNum);
+            sendBuffer.putByte((byte) blockSize);
+            sendBuffer.putByte((byte) index);
+            sendBuffer.putUnsignedShort(block);
+            sendBuffer.putInt(message.length);
+            sendBuffer.put(parity);
+
+            if (debug) {
+                Log.e(TAG, "发送第 " + block + " 组的第 " + index + " 个修复帧");
+            }
+            return sendBuffer.getAllBytes();
+        }
+    }
+
+    /**
+     * 按 NACK 重传的帧流，只含丢失的帧
+     */
+    private static final class ResendStream implements FrameStream {
+
+        private final RetainedStream source;
+
+        private final int[] frameIds;
+
+        private int index;
+
+        private ResendStream(RetainedStream source, int[] frameIds) {
+            this.source = source;
+            this.frameIds = frameIds;
+        }
+
+        @Override
+        public long getDestAddress() {
+            return source.getDestAddress();
+        }
+
+        @Override
+        public int getFrameCount() {
+            return frameIds.length;
+        }
+
+        @Override
+        public boolean hasNextFrame() {
+            return index < frameIds.length;
+        }
+
+        @Override
+        public byte[] nextFrame() {
+            return source.getFrame(frameIds[index++]);
+        }
+    }
+
+    /**
+     * 只含一个现成帧的帧流，用于发送控制帧
+     */
+    private static final class SingleFrameStream implements FrameStream {
+
+        private final long destAddress;
+
+        private byte[] frame;
+
+        private SingleFrameStream(long destAddress, byte[] frame) {
+            this.destAddress = destAddress;
+            this.frame = frame;
+        }
+
+        @Override
+        public long getDestAddress() {
+            return destAddress;
+        }
+
+        @Override
+        public int getFrameCount() {
+            return 1;
+        }
+
+        @Override
+        public boolean hasNextFrame() {
+            return frame != null;
+        }
+
+        @Override
+        public byte[] nextFrame() {
+            byte[] temp = frame;
+            frame = null;
+            return temp;
         }
     }
 
-    private byte[] getSendBytes(int frameStreamID, int frameCount, int frameID, byte[] data) {
+    private byte[] getSendBytes(int frameStreamID, int frameCount, int frameID, int streamFlags, byte[] data) {
         sendBuffer.putUnsignedShort(frameStreamID);
-        sendBuffer.putUnsignedShort(frameCount);
-        sendBuffer.putUnsignedShort(frameID);
+        if (streamFlags == 0) {
+            sendBuffer.putUnsignedShort(frameCount);
+            sendBuffer.putUnsignedShort(frameID);
+        } else {
+            sendBuffer.putUnsignedShort(frameCount | FLAG_EXTENDED);
+            sendBuffer.putUnsignedShort(frameID);
+            sendBuffer.putByte((byte) streamFlags);
+        }
         sendBuffer.put(data);
         return sendBuffer.getAllBytes();
     }
@@ -203,11 +839,7 @@ public class LayerMediator implements IMediator {
      * 每帧之间进行延时，让远端硬件有时间处理数据
      */
     private void pauseBetweenFrames() {
-        try {
-            Thread.sleep(layerCallback.getFrameGap());
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        layerCallback.pauseBetweenFrames();
     }
 
 
@@ -220,85 +852,492 @@ public class LayerMediator implements IMediator {
             Log.e(TAG, "连接层接收到数据，源地址:" + srcAddress +  " 数据长度：" + frame.length);
         }
 
+        if (frame.length < HEAD_SIZE) {
+            return;
+        }
+
         // 获取蓝牙帧中的各字段
         receBuffer.put(frame);
         int streamId = getStreamId();
-        int frameNum = getFrameNum();
+        int rawFrameNum = getFrameNum();
+
+        // 帧总数为 0 的是控制帧
+        if (rawFrameNum == 0) {
+            onControlFrame(srcAddress, streamId);
+            receBuffer.clear();
+            return;
+        }
+
+        boolean extended = (rawFrameNum & FLAG_EXTENDED) != 0 && frame.length >= EXT_HEAD_SIZE;
+        int frameNum = rawFrameNum & ~FLAG_EXTENDED;
         int frameId = getFrameId();
-        byte[] frameData = getFrameData();
+        int streamFlags = extended ? getStreamFlags() : 0;
+        byte[] frameData = getFrameData(extended ? EXT_HEAD_SIZE : HEAD_SIZE);
         receBuffer.clear();
 
         if (debug) {
             Log.e(TAG, "接收到帧, 帧流ID:" + streamId + ", 帧总数：" + frameNum + ", 帧序号:" + frameId);
         }
 
+        // 接收端注册了流式接收者时逐帧交付，否则按普通信息整条重组
+        if ((streamFlags & STREAM_FLAG_STREAMING) != 0
+                && receiveStreaming(srcAddress, streamId, frameNum, frameId, streamFlags, frameData)) {
+            return;
+        }
+
+        byte[] message;
+
         // 大部分情况下都不会超过一帧,所以可以省去后续步骤
         if (frameNum == 1) {
-            // receCache.put(frameData);
-            // layerCallback.unPackageFinish(receCache.getAllBytes());
-            // resetReceiveState();
-            layerCallback.unPackageFinish(srcAddress, frameData);
+            message = frameData;
+        } else {
+            synchronized (reassemblyTable) {
+                message = reassemble(srcAddress, streamId, frameNum, frameId, streamFlags, frameData);
+                restartFrameTimer();
+            }
+        }
+
+        // 在锁外把完整的数据交给上层
+        if (message != null) {
+            deliverMessage(srcAddress, streamFlags, message);
+        }
+    }
+
+    /**
+     * 按帧流标志还原完整的数据并交给上层
+     */
+    private void deliverMessage(long srcAddress, int streamFlags, byte[] message) {
+        if ((streamFlags & STREAM_FLAG_COMPRESSED) != 0) {
+            message = decompress(message);
+            if (message == null) {
+                return;
+            }
+        }
+
+        if ((streamFlags & STREAM_FLAG_COALESCED) != 0) {
+            deliverRecords(srcAddress, message);
+        } else {
+            layerCallback.unPackageFinish(srcAddress, message);
+        }
+    }
+
+    /**
+     * 流式接收：按帧序号依次把数据交给接收者，交付过的帧不再缓存
+     * @return 是否按流式处理，该帧流没有流式接收者时返回 false
+     */
+    private boolean receiveStreaming(long srcAddress, int streamId, int frameNum, int frameId, int streamFlags, byte[] frameData) {
+        if (frameId >= frameNum) {
+            return true;
+        }
+
+        ReassemblyTable.Stream stream;
+        synchronized (reassemblyTable) {
+            stream = reassemblyTable.get(srcAddress, streamId);
+        }
+
+        StreamSink sink = null;
+        if (stream == null || stream.frameNum != frameNum) {
+            StreamSink handlerSink = layerCallback.openStreamSink(srcAddress, frameNum);
+            if (handlerSink == null) {
+                return false;
+            }
+            sink = new GuardedSink(handlerSink);
+        } else if (stream.sink == null) {
+            return false;
+        }
+
+        List<byte[]> ready = new ArrayList<>();
+        boolean complete = false;
+
+        synchronized (reassemblyTable) {
+            long now = HashedWheelTimer.now();
+            long deadline = now + FRAME_TIMEOUT;
+
+            if (sink != null) {
+                stream = reassemblyTable.open(srcAddress, streamId, frameNum, streamFlags, deadline);
+                if (stream == null) {
+                    Log.e(TAG, "重组表已满，放弃接收帧流:" + streamId);
+                    sink.onAbort();
+                    return true;
+                }
+                stream.sink = sink;
+            }
+            sink = stream.sink;
+
+            // 暂存的帧过多时丢弃该帧，不记为已收到，之后由 NACK 请求重传
+            if (!stream.isReceived(frameId) && stream.acceptInOrder(frameId, frameData, ready)) {
+                stream.markReceived(frameId);
+                stream.deadline = deadline;
+
+                // 只有按序交付有进展时才重新等待停滞，乱序暂存的帧不推迟 NACK，缺口最迟在 NACK_DELAY 后被请求重传
+                if (!ready.isEmpty()) {
+                    stream.nackRounds = 0;
+                    stream.nackDeadline = now + NACK_DELAY;
+                } else if (stream.nackDeadline < 0 && stream.nackRounds < MAX_NACK_ROUNDS) {
+                    stream.nackDeadline = now + NACK_DELAY;
+                }
+                if (stream.isComplete()) {
+                    reassemblyTable.complete(stream);
+                    complete = true;
+                }
+            } else if (!stream.isReceived(frameId) && stream.nackRounds == 0) {
+                // 暂存已满说明前面的缺口确实丢失，不必等到停滞超时，立即请求重传
+                stream.nackDeadline = now;
+            }
+            restartFrameTimer();
+        }
+
+        // 在锁外交付，空帧流的唯一一帧没有数据，只结束接收者
+        for (byte[] data : ready) {
+            if (data.length > 0) {
+                sink.onData(data);
+            }
+        }
+        if (complete) {
+            sink.onEnd();
+        }
+        return true;
+    }
+
+    /**
+     * 保证接收者在结束或中止后不再收到任何通知，交付和超时中止可能来自不同线程
+     */
+    private static final class GuardedSink implements StreamSink {
+
+        private final StreamSink sink;
+
+        private boolean closed;
+
+        private GuardedSink(StreamSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public synchronized void onData(byte[] data) {
+            if (!closed) {
+                sink.onData(data);
+            }
+        }
+
+        @Override
+        public synchronized void onEnd() {
+            if (!closed) {
+                closed = true;
+                sink.onEnd();
+            }
+        }
+
+        @Override
+        public synchronized void onAbort() {
+            if (!closed) {
+                closed = true;
+                sink.onAbort();
+            }
+        }
+    }
+
+    /**
+     * 把合并发送的数据拆成各条短信息，逐条交给上层，遇到不完整的记录时丢弃剩余部分
+     */
+    private void deliverRecords(long srcAddress, byte[] message) {
+        int position = 0;
+        while (position < message.length) {
+            int length = message[position] & 0xFF;
+            position++;
+            if (position + length > message.length) {
+                Log.e(TAG, "合并帧中的记录不完整，源地址:" + srcAddress);
+                return;
+            }
+
+            byte[] record = new byte[length];
+            System.arraycopy(message, position, record, 0, length);
+            position += length;
+            layerCallback.unPackageFinish(srcAddress, record);
+        }
+    }
+
+    /**
+     * 处理控制帧
+     * @param srcAddress 控制帧的源地址
+     * @param streamId 控制帧所针对的帧流
+     */
+    private void onControlFrame(long srcAddress, int streamId) {
+        if (receBuffer.getBufferLength() <= HEAD_SIZE - 2) {
+            return;
+        }
+
+        byte type = receBuffer.getByte(4);
+        if (type == CTRL_NACK) {
+            onNackFrame(streamId);
+        } else if (type == CTRL_REPAIR) {
+            onRepairFrame(srcAddress, streamId);
+        }
+    }
+
+    /**
+     * 处理修复帧：暂存后尝试还原所属组中丢失的数据帧
+     */
+    private void onRepairFrame(long srcAddress, int streamId) {
+        if (receBuffer.getBufferLength() <= REPAIR_HEAD_SIZE) {
             return;
         }
 
-        // 当需要接收多帧时，每次接收到新的一帧都需要重启定时器检测延时
-        frameTimer.resetTimer();
-        frameTimer.startTimer(frameTimeoutTask, FRAME_TIMEOUT);
+        int streamFlags = receBuffer.getByte(5) & 0xFF;
+        int frameNum = receBuffer.getUnsignedShort(6);
+        int blockSize = receBuffer.getByte(8) & 0xFF;
+        int repairIndex = receBuffer.getByte(9) & 0xFF;
+        int block = receBuffer.getUnsignedShort(10);
+        int messageLength = receBuffer.getInt(12);
+        byte[] parity = receBuffer.get(REPAIR_HEAD_SIZE, receBuffer.getBufferLength() - REPAIR_HEAD_SIZE);
 
-        // 需要接收多帧时，第一帧时需要做一些初始化工作
-        if (frameId == 0) {
+        if (frameNum < 2 || blockSize == 0 || blockSize + repairIndex >= 256 || block * blockSize >= frameNum) {
+            return;
+        }
+
+        byte[] message = null;
+
+        synchronized (reassemblyTable) {
+            long now = HashedWheelTimer.now();
+            ReassemblyTable.Stream stream = reassemblyTable.get(srcAddress, streamId);
+            if (stream == null || stream.frameNum != frameNum) {
+                if (reassemblyTable.isCompleted(srcAddress, streamId, frameNum, now)) {
+                    return;
+                }
+                stream = reassemblyTable.open(srcAddress, streamId, frameNum, streamFlags, now + FRAME_TIMEOUT);
+                if (stream == null) {
+                    return;
+                }
+            }
 
-            this.srcAddress = srcAddress;
-            currentFrameStreamId = streamId;
-            currentFrameNum = frameNum;
-            lastFrameId = frameId;
+            // 流式帧流逐帧交付，不使用修复帧
+            if (stream.sink == null
+                    && reassemblyTable.addRepair(stream, block, repairIndex, blockSize, messageLength, parity)) {
+                stream.deadline = now + FRAME_TIMEOUT;
+                reassemblyTable.recoverBlock(stream, block);
+                if (stream.isComplete()) {
+                    message = stream.getMessage();
+                    reassemblyTable.complete(stream);
+                }
+            }
+            restartFrameTimer();
+        }
 
-            // TODO 根据具体的帧总数来分配本次的接收总缓冲
-            receCache = new BaseBuffer(frameNum * FRAME_MAX_ROW_DATA_SIZE + EXTRA_SIZE);
-            receCache.put(frameData);
+        if (message != null) {
+            deliverMessage(srcAddress, streamFlags, message);
+        }
+    }
 
+    /**
+     * 处理 NACK：如果是发给自己的，按位图重传丢失的帧
+     * @param streamId NACK 所针对的帧流
+     */
+    private void onNackFrame(int streamId) {
+        if (receBuffer.getBufferLength() < NACK_HEAD_SIZE) {
+            return;
+        }
+
+        if (getAddress(receBuffer, 5) != layerCallback.getMyAddress()) {
+            return;
+        }
+
+        RetainedStream source = retransmitStore.get(streamId, HashedWheelTimer.now());
+        int frameNum = receBuffer.getUnsignedShort(10);
+        if (source == null || source.getDataFrameCount() != frameNum) {
             if (debug) {
-                Log.e(TAG, "第 0 帧接收成功， 帧数据长度:" + frameData.length);
+                Log.e(TAG, "收到 NACK，但帧流 " + streamId + " 已不在重传缓存中");
             }
             return;
         }
 
+        int base = receBuffer.getUnsignedShort(12);
+        byte[] bitmap = receBuffer.get(NACK_HEAD_SIZE, receBuffer.getBufferLength() - NACK_HEAD_SIZE);
 
-        // 判断后续的 数据帧 是否属于此次传输的帧流
-        if (this.srcAddress == srcAddress && currentFrameStreamId == streamId ) {
+        int count = 0;
+        int[] frameIds = new int[bitmap.length * 8];
+        for (int i = 0; i < frameIds.length; i++) {
+            int id = base + i;
+            if (id < frameNum && (bitmap[i >>> 3] & (1 << (i & 7))) != 0 && source.isRetained(id)) {
+                frameIds[count++] = id;
+            }
+        }
 
+        if (count > 0) {
             if (debug) {
-                Log.e(TAG, "该数据帧 属于 本次传输帧流");
+                Log.e(TAG, "收到 NACK，重传帧流 " + streamId + " 的 " + count + " 帧");
             }
+            int[] resend = new int[count];
+            System.arraycopy(frameIds, 0, resend, 0, count);
+            layerCallback.submitStream(new ResendStream(source, resend));
+        }
+    }
 
-            // 帧序号要连续,且在指定范围
-            if (frameId > lastFrameId && frameId < currentFrameNum ) {
+    /**
+     * 定时器触发：丢弃已超时的帧流，对接收停滞的选择重传帧流发送 NACK
+     */
+    private void checkReceiveTimeout() {
+        List<FrameStream> nacks = null;
 
-                if (debug) {
-                    Log.e(TAG, "第 " + frameId + " 帧接收成功， 帧数据长度:" + frameData.length);
+        synchronized (reassemblyTable) {
+            long now = HashedWheelTimer.now();
+            reassemblyTable.expire(now);
+
+            for (int i = 0; i < reassemblyTable.size(); i++) {
+                ReassemblyTable.Stream stream = reassemblyTable.streamAt(i);
+                if (stream.nackDeadline < 0 || stream.nackDeadline > now) {
+                    continue;
                 }
 
-                lastFrameId = frameId;
-                receCache.put(frameData);
+                if (nacks == null) {
+                    nacks = new ArrayList<>();
+                }
+                nacks.add(new SingleFrameStream(INwk.BROADCAST_ADDRESS, getNackFrame(stream)));
 
-                // 本次的数据帧是否是最后一个数据帧
-                if (frameId == currentFrameNum - 1) {
+                stream.nackRounds++;
+                stream.nackDeadline = stream.nackRounds < MAX_NACK_ROUNDS ? now + NACK_DELAY : -1;
+            }
 
-                    if (debug) {
-                        Log.e(TAG, "帧流接收完成，复位帧定时器，本次传输的数据总长度:" + receCache.getBufferLength());
-                    }
+            restartFrameTimer();
+        }
+
+        if (nacks != null) {
+            for (FrameStream nack : nacks) {
+                layerCallback.submitStream(nack);
+            }
+        }
+    }
+
+    /**
+     * 生成 NACK 帧，位图从第一个丢失的帧开始，放不下的留给下一次 NACK
+     * 位图只覆盖到到达过的最大帧序号，其后的帧可能仍在途中；缺口之后没有任何帧到达时说明帧流末尾丢失，覆盖到最后一帧
+     */
+    private byte[] getNackFrame(ReassemblyTable.Stream stream) {
+        int base = stream.firstMissing();
+        int end = stream.seenEnd;
+        if (end <= base) {
+            end = stream.frameNum;
+        }
+        int bitmapSize = Math.min(FRAME_MAX_SIZE - NACK_HEAD_SIZE, (end - base + 7) / 8);
+        byte[] bitmap = new byte[bitmapSize];
+        stream.writeMissing(base, end, bitmap);
+
+        if (debug) {
+            Log.e(TAG, "请求重传帧流 " + stream.streamId + "，起始帧序号:" + base);
+        }
+
+        BaseBuffer nackBuffer = new BaseBuffer(NACK_HEAD_SIZE + bitmapSize);
+        nackBuffer.putUnsignedShort(stream.streamId);
+        nackBuffer.putUnsignedShort(0);
+        nackBuffer.putByte(CTRL_NACK);
+        putAddress(nackBuffer, stream.srcAddress);
+        nackBuffer.putUnsignedShort(stream.frameNum);
+        nackBuffer.putUnsignedShort(base);
+        nackBuffer.put(bitmap);
+        return nackBuffer.getAllBytes();
+    }
+
+    /**
+     * 将 5 字节的地址拆成 1 + 4 两部分写入
+     */
+    private static void putAddress(BaseBuffer buffer, long address) {
+        buffer.putByte((byte) ((0x000000ff00000000L & address) >>> 32));
+        buffer.putInt((int) (0x00000000ffffffffL & address));
+    }
+
+    /**
+     * 从 index 位置读取 5 字节的地址
+     */
+    private static long getAddress(BaseBuffer buffer, int index) {
+        return ((((long) buffer.getByte(index)) & 0xffL) << 32) | ((long) buffer.getInt(index + 1) & 0xffffffffL);
+    }
+
+    /**
+     * 把一帧放入所属的帧流，帧可以乱序到达，按帧序号写入对应位置，调用时需持有重组表的锁
+     * @return 帧流的所有帧都已收到时返回完整的数据，否则返回 null
+     */
+    private byte[] reassemble(long srcAddress, int streamId, int frameNum, int frameId, int streamFlags, byte[] frameData) {
+
+        if (frameId >= frameNum) {
+            return null;
+        }
+
+        // 当需要接收多帧时，每个帧流各自记录超时时刻，每次接收到新的一帧都需要延后
+        long deadline = HashedWheelTimer.now() + FRAME_TIMEOUT;
+
+        // 帧流的任意一帧先到达时都需要做一些初始化工作，已经完成的帧流迟到的帧直接丢弃
+        ReassemblyTable.Stream stream = reassemblyTable.get(srcAddress, streamId);
+        if (stream == null || stream.frameNum != frameNum) {
+            if (reassemblyTable.isCompleted(srcAddress, streamId, frameNum, HashedWheelTimer.now())) {
+                return null;
+            }
+            stream = reassemblyTable.open(srcAddress, streamId, frameNum, streamFlags, deadline);
+            if (stream == null) {
+                Log.e(TAG, "重组表已满，放弃接收帧流:" + streamId);
+                return null;
+            }
+        }
+
+        if (stream.isReceived(frameId)) {
+            if (debug) {
+                Log.e(TAG, "第 " + frameId + " 帧重复接收");
+            }
+            return null;
+        }
 
-                    // 帧流传输完毕，复位帧定时器
-                    frameTimer.resetTimer();
-                    layerCallback.unPackageFinish(this.srcAddress, receCache.getAllBytes());
-                    resetReceiveState();
+        if (frameId == frameNum - 1) {
+            // 最后一帧长度不固定，单独保存
+            stream.lastFrameData = frameData;
+
+        } else {
+            // 除最后一帧外每帧的数据长度都相同，由第一个到达的帧确定，接收缓冲随帧的到达逐块分配
+            if (!reassemblyTable.write(stream, frameId, frameData)) {
+                if (debug) {
+                    Log.e(TAG, "第 " + frameId + " 帧无法写入, 丢弃");
                 }
+                return null;
             }
+        }
+
+        stream.markReceived(frameId);
+        stream.deadline = deadline;
+
+        // 有新的帧到达，重新开始等待接收停滞；流式帧流没有流式接收者时同样按 NACK 请求重传
+        if ((stream.streamFlags & (STREAM_FLAG_SELECTIVE_REPEAT | STREAM_FLAG_STREAMING)) != 0) {
+            stream.nackRounds = 0;
+            stream.nackDeadline = HashedWheelTimer.now() + NACK_DELAY;
+        }
 
-        } else if (debug) {
-            Log.e(TAG, "该帧 不属于 本次传输帧流");
+        if (debug) {
+            Log.e(TAG, "第 " + frameId + " 帧接收成功， 帧数据长度:" + frameData.length);
+        }
+
+        // 前向纠错帧流每收到一帧都尝试还原所属组
+        if ((stream.streamFlags & STREAM_FLAG_FEC) != 0) {
+            reassemblyTable.recoverBlockOf(stream, frameId);
         }
 
+        if (!stream.isComplete()) {
+            return null;
+        }
+
+        byte[] message = stream.getMessage();
+        reassemblyTable.complete(stream);
+
+        if (debug) {
+            Log.e(TAG, "帧流接收完成，本次传输的数据总长度:" + message.length);
+        }
+        return message;
+    }
+
+    /**
+     * 按重组表中最早的超时时刻重启帧超时定时器，调用时需持有重组表的锁
+     */
+    private void restartFrameTimer() {
+        long deadline = reassemblyTable.nextDeadline();
+        if (deadline < 0) {
+            frameTimer.resetTimer();
+        } else {
+            frameTimer.startTimer(frameTimeoutTask, (int) Math.max(0L, deadline - HashedWheelTimer.now()));
+        }
     }
 
     /**
@@ -323,23 +1362,18 @@ public class LayerMediator implements IMediator {
     }
 
     /**
-     * 提取纯数据
+     * 提取帧流标志，只有扩展帧头才有
      */
-    private byte[] getFrameData() {
-        return receBuffer.get(6, receBuffer.getBufferLength() - 6);
+    private int getStreamFlags() {
+        return receBuffer.getByte(6) & 0xFF;
     }
 
     /**
-     * 重置接收状态
+     * 提取纯数据
+     * @param headSize 帧头长度
      */
-    private void resetReceiveState() {
-        srcAddress = -1;
-        currentFrameStreamId = -1;
-        currentFrameNum = -1;
-        lastFrameId = -1;
-
-        receBuffer.clear();
-        receCache.clear();
+    private byte[] getFrameData(int headSize) {
+        return receBuffer.get(headSize, receBuffer.getBufferLength() - headSize);
     }
 
     @Override
@@ -351,8 +1385,16 @@ public class LayerMediator implements IMediator {
         if (receBuffer != null) {
             receBuffer = null;
         }
-        if (receCache != null) {
-            receCache = null;
+        synchronized (reassemblyTable) {
+            reassemblyTable.clear();
+        }
+        retransmitStore.clear();
+        synchronized (deflater) {
+            codecReleased = true;
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflater.end();
         }
     }
 }
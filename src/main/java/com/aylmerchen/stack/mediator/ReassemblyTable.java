@@ -0,0 +1,677 @@
+package com.aylmerchen.stack.mediator;
+
+import android.util.Log;
+
+import com.aylmerchen.stack.util.ChunkPool;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.aylmerchen.stack.BuildConfig.debug;
+
+/**
+ * 帧流重组表，以 (源地址, 帧流标识) 区分同时在接收的多个帧流，
+ * 每个帧流有各自的超时时刻，并限制同时重组的帧流个数
+ * 帧可以乱序到达，每帧按序号写入对应的位置，用位图记录已收到的帧
+ * 接收缓冲由定长内存块组成，随帧的到达逐块从 {@link ChunkPool} 取用，块池的总字节数达到上限时按淘汰策略腾出空间
+ * 非线程安全
+ */
+final class ReassemblyTable {
+
+    private static final String TAG = ReassemblyTable.class.getSimpleName();
+
+    /**
+     * 流式帧流最多暂存的乱序帧个数，小于发送端默认保留的帧数，暂存满时立即发出的 NACK 请求的帧仍能重传
+     */
+    private static final int MAX_PARKED_FRAMES = 32;
+
+    /**
+     * 记录的最近完成的帧流个数
+     */
+    private static final int MAX_COMPLETED = 32;
+
+    /**
+     * 每个帧流最多暂存的修复帧个数
+     */
+    private static final int MAX_REPAIR_FRAMES = 256;
+
+    /**
+     * 正在重组的帧流，前 streamCount 个有效，个数不超过 maxStreams，按 (源地址, 帧流标识) 顺序查找
+     */
+    private final Stream[] streams;
+
+    private int streamCount;
+
+    private final ChunkPool chunkPool;
+
+    /**
+     * 最近完成的帧流，用于丢弃完成后才到达的帧，避免重复交付，环形保存
+     */
+    private final long[] completedKeys = new long[MAX_COMPLETED];
+
+    private final int[] completedFrameNums = new int[MAX_COMPLETED];
+
+    private final long[] completedDeadlines = new long[MAX_COMPLETED];
+
+    private int completedIndex;
+
+    /**
+     * 最多同时重组的帧流个数
+     */
+    private final int maxStreams;
+
+    /**
+     * 淘汰策略，见 {@link IMediator#EVICT_OLDEST}
+     */
+    private int evictionPolicy = IMediator.EVICT_OLDEST;
+
+    ReassemblyTable(ChunkPool chunkPool, int maxStreams) {
+        this.chunkPool = chunkPool;
+        this.maxStreams = maxStreams;
+        this.streams = new Stream[maxStreams];
+    }
+
+    void setEvictionPolicy(int evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    private static long key(long srcAddress, int streamId) {
+        return ((srcAddress & 0xFFFFFFFFFFL) << 16) | (streamId & 0xFFFF);
+    }
+
+    Stream get(long srcAddress, int streamId) {
+        int index = indexOf(srcAddress, streamId);
+        return index < 0 ? null : streams[index];
+    }
+
+    private int indexOf(long srcAddress, int streamId) {
+        for (int i = 0; i < streamCount; i++) {
+            if (streams[i].srcAddress == srcAddress && streams[i].streamId == streamId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 开始重组一个新的帧流，超出个数上限时先按淘汰策略淘汰其他帧流
+     * 接收缓冲要等知道了发送端的单帧数据长度后才分配，见 {@link #write(Stream, int, byte[])}
+     * @param deadline 超时时刻，单位 ms
+     * @return 新的帧流，按淘汰策略不能淘汰其他帧流时返回 null
+     */
+    Stream open(long srcAddress, int streamId, int frameNum, int streamFlags, long deadline) {
+        Stream old = get(srcAddress, streamId);
+        if (old != null) {
+            discard(old);
+        }
+
+        while (streamCount >= maxStreams) {
+            if (!evict(null)) {
+                return null;
+            }
+        }
+
+        Stream stream = new Stream(srcAddress, streamId, frameNum, streamFlags, deadline);
+        streams[streamCount++] = stream;
+        return stream;
+    }
+
+    /**
+     * 把一帧的数据部分写入帧流的接收缓冲，缺少的内存块从块池中取用，
+     * 块池已满时按淘汰策略淘汰其他帧流
+     * 第一个写入的帧确定帧流的单帧数据长度，之后长度不符的帧被丢弃
+     * @return 是否写入成功，单个帧流就超出块池上限时移除该帧流
+     */
+    boolean write(Stream stream, int frameId, byte[] data) {
+        if (stream.rowSize < 0 && !setRowSize(stream, data.length)) {
+            return false;
+        }
+
+        if (data.length != stream.rowSize) {
+            return false;
+        }
+
+        int chunkSize = chunkPool.getChunkSize();
+        int position = frameId * stream.rowSize;
+        int end = position + data.length;
+
+        // 先取齐这一帧跨越的所有块，再写入
+        for (int index = position / chunkSize; index <= (end - 1) / chunkSize; index++) {
+            while (stream.chunks[index] == null) {
+                byte[] chunk = chunkPool.obtain();
+                if (chunk != null) {
+                    stream.chunks[index] = chunk;
+                    stream.chunkCount++;
+                } else if (!evict(stream)) {
+                    if (debug) {
+                        Log.e(TAG, "块池已满，丢弃帧，帧流ID:" + stream.streamId + ", 帧序号:" + frameId);
+                    }
+                    return false;
+                }
+            }
+        }
+
+        int offset = 0;
+        while (position < end) {
+            int inChunk = position % chunkSize;
+            int count = Math.min(chunkSize - inChunk, end - position);
+            System.arraycopy(data, offset, stream.chunks[position / chunkSize], inChunk, count);
+            position += count;
+            offset += count;
+        }
+        return true;
+    }
+
+    /**
+     * 确定帧流的单帧数据长度，并据此准备接收缓冲的块索引
+     * @return 单个帧流就超出块池上限时移除该帧流并返回 false
+     */
+    private boolean setRowSize(Stream stream, int rowSize) {
+        long capacity = (long) (stream.frameNum - 1) * rowSize;
+        if (capacity > chunkPool.getMaxBytes()) {
+            remove(stream);
+            return false;
+        }
+        stream.rowSize = rowSize;
+        stream.chunkSize = chunkPool.getChunkSize();
+        stream.chunks = new byte[(int) ((capacity + stream.chunkSize - 1) / stream.chunkSize)][];
+        return true;
+    }
+
+    /**
+     * 暂存一个修复帧
+     * @param block 所属的组
+     * @param repairIndex 修复帧在组内的序号
+     * @param blockSize 每组的数据帧个数
+     * @param messageLength 帧流数据的总长度，用于还原最后一帧的长度
+     * @param parity 修复数据，长度即单帧数据长度
+     * @return 是否暂存成功
+     */
+    boolean addRepair(Stream stream, int block, int repairIndex, int blockSize, int messageLength, byte[] parity) {
+        if (stream.rowSize < 0 && !setRowSize(stream, parity.length)) {
+            return false;
+        }
+        if (parity.length != stream.rowSize || (stream.fecBlockSize > 0 && stream.fecBlockSize != blockSize)) {
+            return false;
+        }
+
+        if (stream.repairs == null) {
+            stream.repairs = new HashMap<>();
+        }
+        if (stream.repairs.size() >= MAX_REPAIR_FRAMES) {
+            return false;
+        }
+        stream.fecBlockSize = blockSize;
+        stream.messageLength = messageLength;
+        stream.repairs.put((block << 8) | repairIndex, parity);
+        return true;
+    }
+
+    /**
+     * 尝试用暂存的修复帧还原一组中丢失的数据帧，还原成功或该组已收齐时释放该组的修复帧
+     * @param block 组号
+     * @return 是否还原了丢失的帧
+     */
+    boolean recoverBlock(Stream stream, int block) {
+        int blockSize = stream.fecBlockSize;
+        if (blockSize <= 0 || stream.repairs == null) {
+            return false;
+        }
+        int first = block * blockSize;
+        int count = Math.min(blockSize, stream.frameNum - first);
+        if (count <= 0) {
+            return false;
+        }
+
+        int[] missing = new int[count];
+        int missingCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (!stream.isReceived(first + i)) {
+                missing[missingCount++] = i;
+            }
+        }
+        if (missingCount == 0) {
+            stream.removeRepairs(block, blockSize);
+            return false;
+        }
+
+        // 丢失几帧就需要几个修复帧
+        int[] repairIndexes = new int[missingCount];
+        byte[][] rows = new byte[missingCount][];
+        int n = 0;
+        for (int j = 0; j + blockSize < 256 && n < missingCount; j++) {
+            byte[] parity = stream.repairs.get((block << 8) | j);
+            if (parity != null) {
+                repairIndexes[n] = j;
+                rows[n] = parity.clone();
+                n++;
+            }
+        }
+        if (n < missingCount) {
+            return false;
+        }
+
+        // 从修复数据中减去已收到的帧的贡献，剩下的只与丢失的帧有关
+        byte[] row = new byte[stream.rowSize];
+        for (int i = 0, m = 0; i < count; i++) {
+            if (m < missingCount && missing[m] == i) {
+                m++;
+                continue;
+            }
+            stream.readRow(first + i, row);
+            for (int r = 0; r < n; r++) {
+                FecCodec.mulAdd(rows[r], row, 0, row.length, FecCodec.coefficient(repairIndexes[r], i, blockSize));
+            }
+        }
+
+        int[][] matrix = new int[n][n];
+        for (int r = 0; r < n; r++) {
+            for (int m = 0; m < n; m++) {
+                matrix[r][m] = FecCodec.coefficient(repairIndexes[r], missing[m], blockSize);
+            }
+        }
+        if (!FecCodec.solve(matrix, rows)) {
+            return false;
+        }
+
+        for (int m = 0; m < n; m++) {
+            int frameId = first + missing[m];
+            if (frameId == stream.frameNum - 1) {
+                int lastLength = stream.messageLength - frameId * stream.rowSize;
+                if (lastLength < 0 || lastLength > stream.rowSize) {
+                    return false;
+                }
+                byte[] last = new byte[lastLength];
+                System.arraycopy(rows[m], 0, last, 0, lastLength);
+                stream.lastFrameData = last;
+            } else if (!write(stream, frameId, rows[m])) {
+                return false;
+            }
+            stream.markReceived(frameId);
+        }
+
+        if (debug) {
+            Log.e(TAG, "帧流 " + stream.streamId + " 第 " + block + " 组还原了 " + n + " 帧");
+        }
+        stream.removeRepairs(block, blockSize);
+        return true;
+    }
+
+    /**
+     * 收到数据帧后尝试还原其所在的组，还没有收到修复帧时不知道分组，直接返回
+     */
+    boolean recoverBlockOf(Stream stream, int frameId) {
+        return stream.fecBlockSize > 0 && recoverBlock(stream, frameId / stream.fecBlockSize);
+    }
+
+    /**
+     * 帧流接收完成，移除并记录，之后一段时间内到达的该帧流的帧都被丢弃
+     */
+    void complete(Stream stream) {
+        remove(stream);
+        completedKeys[completedIndex] = key(stream.srcAddress, stream.streamId);
+        completedFrameNums[completedIndex] = stream.frameNum;
+        completedDeadlines[completedIndex] = stream.deadline;
+        completedIndex = (completedIndex + 1) % MAX_COMPLETED;
+    }
+
+    /**
+     * 帧流是否刚刚接收完成
+     * @param now 当前时刻，单位 ms
+     */
+    boolean isCompleted(long srcAddress, int streamId, int frameNum, long now) {
+        long key = key(srcAddress, streamId);
+        for (int i = 0; i < MAX_COMPLETED; i++) {
+            if (completedKeys[i] == key && completedFrameNums[i] == frameNum && completedDeadlines[i] > now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按淘汰策略淘汰一个帧流
+     * @param exclude 不能被淘汰的帧流，即正在写入的帧流，可以为 null
+     * @return 是否淘汰了帧流
+     */
+    private boolean evict(Stream exclude) {
+        Stream victim = null;
+        for (int i = 0; i < streamCount; i++) {
+            Stream stream = streams[i];
+            if (stream == exclude) {
+                continue;
+            }
+            if (evictionPolicy == IMediator.EVICT_LARGEST) {
+                if (victim == null || stream.chunkCount > victim.chunkCount) {
+                    victim = stream;
+                }
+            } else if (evictionPolicy == IMediator.EVICT_OLDEST) {
+                if (victim == null || stream.deadline < victim.deadline) {
+                    victim = stream;
+                }
+            }
+        }
+
+        if (victim == null) {
+            return false;
+        }
+
+        if (debug) {
+            Log.e(TAG, "重组表已满，丢弃帧流，源地址:" + victim.srcAddress + ", 帧流ID:" + victim.streamId);
+        }
+        chunkPool.recordEviction();
+        discard(victim);
+        return true;
+    }
+
+    /**
+     * 放弃接收帧流，移除并通知流式接收者中止
+     */
+    private void discard(Stream stream) {
+        remove(stream);
+        if (stream.sink != null) {
+            stream.sink.onAbort();
+        }
+    }
+
+    /**
+     * 移除帧流并归还其内存块，最后一个帧流移到空出的位置
+     */
+    void remove(Stream stream) {
+        int index = indexOf(stream.srcAddress, stream.streamId);
+        if (index >= 0 && streams[index] == stream) {
+            streams[index] = streams[--streamCount];
+            streams[streamCount] = null;
+        }
+        if (stream.chunks != null) {
+            for (int i = 0; i < stream.chunks.length; i++) {
+                chunkPool.recycle(stream.chunks[i]);
+                stream.chunks[i] = null;
+            }
+            stream.chunks = null;
+            stream.chunkCount = 0;
+        }
+    }
+
+    /**
+     * 移除所有已超时的帧流
+     * @param now 当前时刻，单位 ms
+     */
+    void expire(long now) {
+        // 从后向前遍历，移除时移到空位上的帧流已经检查过
+        for (int i = streamCount - 1; i >= 0; i--) {
+            Stream stream = streams[i];
+            if (stream.deadline <= now) {
+                Log.e(TAG, "帧接收超时，源地址:" + stream.srcAddress + ", 帧流ID:" + stream.streamId);
+                discard(stream);
+            }
+        }
+    }
+
+    /**
+     * 最早的超时或 NACK 时刻
+     * @return 单位 ms，没有帧流时返回 -1
+     */
+    long nextDeadline() {
+        long next = -1;
+        for (int i = 0; i < streamCount; i++) {
+            Stream stream = streams[i];
+            long deadline = stream.nackDeadline < 0 ? stream.deadline : Math.min(stream.deadline, stream.nackDeadline);
+            if (next < 0 || deadline < next) {
+                next = deadline;
+            }
+        }
+        return next;
+    }
+
+    int size() {
+        return streamCount;
+    }
+
+    Stream streamAt(int index) {
+        return streams[index];
+    }
+
+    void clear() {
+        for (int i = streamCount - 1; i >= 0; i--) {
+            discard(streams[i]);
+        }
+    }
+
+    /**
+     * 正在重组的单个帧流
+     */
+    static final class Stream {
+
+        final long srcAddress;
+
+        final int streamId;
+
+        final int frameNum;
+
+        /**
+         * 帧流标志
+         */
+        final int streamFlags;
+
+        /**
+         * 已收到的帧的位图，第 i 位表示序号为 i 的帧
+         */
+        private final long[] received;
+
+        /**
+         * 已收到的帧数
+         */
+        private int receivedCount;
+
+        /**
+         * 发送端的单帧数据长度，收到第一个非最后一帧之前为 -1
+         */
+        int rowSize = -1;
+
+        /**
+         * 按帧序号缓存除最后一帧外所有帧的数据部分，由定长内存块组成，只有收到过帧的块才会分配
+         */
+        private byte[][] chunks;
+
+        /**
+         * 已分配的内存块个数
+         */
+        private int chunkCount;
+
+        /**
+         * 内存块大小
+         */
+        private int chunkSize;
+
+        /**
+         * 前向纠错的每组数据帧个数，收到修复帧之前为 0
+         */
+        private int fecBlockSize;
+
+        /**
+         * 帧流数据的总长度，由修复帧携带，收到修复帧之前为 -1
+         */
+        private int messageLength = -1;
+
+        /**
+         * 暂存的修复帧，键为 组号 << 8 | 组内序号
+         */
+        private Map<Integer, byte[]> repairs;
+
+        /**
+         * 最后一帧的数据部分，长度不固定，单独保存
+         */
+        byte[] lastFrameData;
+
+        /**
+         * 超时时刻，单位 ms
+         */
+        long deadline;
+
+        /**
+         * 流式帧流的接收者，普通帧流为 null
+         */
+        IMediator.StreamSink sink;
+
+        /**
+         * 流式帧流下一个待交付的帧序号
+         */
+        private int nextDeliver;
+
+        /**
+         * 流式帧流中先于前面的帧到达的帧，等前面的帧交付后再交付
+         */
+        private Map<Integer, byte[]> parked;
+
+        /**
+         * 下一次发送 NACK 的时刻，单位 ms，不需要发送时为 -1
+         */
+        long nackDeadline = -1;
+
+        /**
+         * 接收停滞后已连续发送 NACK 的次数
+         */
+        int nackRounds;
+
+        /**
+         * 到达过的最大帧序号加 1，包括因暂存过多而丢弃的帧，其后的帧可能仍在途中
+         */
+        int seenEnd;
+
+        private Stream(long srcAddress, int streamId, int frameNum, int streamFlags, long deadline) {
+            this.srcAddress = srcAddress;
+            this.streamId = streamId;
+            this.frameNum = frameNum;
+            this.streamFlags = streamFlags;
+            this.received = new long[(frameNum + 63) >>> 6];
+            this.deadline = deadline;
+        }
+
+        /**
+         * 是否已收到指定序号的帧
+         */
+        boolean isReceived(int frameId) {
+            return (received[frameId >>> 6] & (1L << frameId)) != 0;
+        }
+
+        /**
+         * 记录收到指定序号的帧
+         */
+        void markReceived(int frameId) {
+            received[frameId >>> 6] |= 1L << frameId;
+            receivedCount++;
+            seenEnd = Math.max(seenEnd, frameId + 1);
+        }
+
+        /**
+         * 流式接收：按帧序号依次交付，乱序到达的帧先暂存
+         * @param ready 输出参数，本次可以依次交付的数据
+         * @return 是否接受了该帧，暂存的帧过多时不接受
+         */
+        boolean acceptInOrder(int frameId, byte[] data, List<byte[]> ready) {
+            if (frameId != nextDeliver) {
+                if (parked == null) {
+                    parked = new HashMap<>();
+                }
+                if (parked.size() >= MAX_PARKED_FRAMES) {
+                    seenEnd = Math.max(seenEnd, frameId + 1);
+                    return false;
+                }
+                parked.put(frameId, data);
+                return true;
+            }
+
+            ready.add(data);
+            nextDeliver++;
+
+            byte[] next;
+            while (parked != null && (next = parked.get(nextDeliver)) != null) {
+                parked.remove(nextDeliver);
+                ready.add(next);
+                nextDeliver++;
+            }
+            return true;
+        }
+
+        /**
+         * 第一个未收到的帧的序号
+         */
+        int firstMissing() {
+            for (int i = 0; i < received.length; i++) {
+                if (received[i] != -1L) {
+                    return (i << 6) + Long.numberOfTrailingZeros(~received[i]);
+                }
+            }
+            return frameNum;
+        }
+
+        /**
+         * 把 [base, end) 中未收到的帧写成位图，第 i 位表示序号为 base + i 的帧
+         */
+        void writeMissing(int base, int end, byte[] bitmap) {
+            end = Math.min(end, base + bitmap.length * 8);
+            for (int id = base; id < end; id++) {
+                if (!isReceived(id)) {
+                    int i = id - base;
+                    bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+        }
+
+        /**
+         * 读取一个已收到的帧的数据，不足 row 长度的部分补 0
+         */
+        void readRow(int frameId, byte[] row) {
+            if (frameId == frameNum - 1) {
+                Arrays.fill(row, (byte) 0);
+                System.arraycopy(lastFrameData, 0, row, 0, Math.min(lastFrameData.length, row.length));
+                return;
+            }
+
+            int position = frameId * rowSize;
+            int offset = 0;
+            while (offset < rowSize) {
+                int inChunk = position % chunkSize;
+                int count = Math.min(chunkSize - inChunk, rowSize - offset);
+                System.arraycopy(chunks[position / chunkSize], inChunk, row, offset, count);
+                position += count;
+                offset += count;
+            }
+        }
+
+        /**
+         * 释放一组的所有修复帧
+         */
+        void removeRepairs(int block, int blockSize) {
+            for (int j = 0; j + blockSize < 256; j++) {
+                repairs.remove((block << 8) | j);
+            }
+        }
+
+        /**
+         * 是否所有帧都已收到
+         */
+        boolean isComplete() {
+            return receivedCount == frameNum;
+        }
+
+        /**
+         * 按帧序号拼接出完整的数据
+         */
+        byte[] getMessage() {
+            int headLength = frameNum > 1 ? (frameNum - 1) * rowSize : 0;
+            byte[] message = new byte[headLength + lastFrameData.length];
+            int position = 0;
+            for (int i = 0; position < headLength; i++) {
+                int count = Math.min(chunks[i].length, headLength - position);
+                System.arraycopy(chunks[i], 0, message, position, count);
+                position += count;
+            }
+            System.arraycopy(lastFrameData, 0, message, headLength, lastFrameData.length);
+            return message;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.aylmerchen.stack.mediator;
+
+/**
+ * 发送端的选择重传缓存，已发送完的帧流在此保留一段时间，以便按接收端的 NACK 只重传丢失的帧
+ * 容量固定，超出时淘汰最早到期的帧流
+ * 线程安全
+ */
+final class RetransmitStore<T> {
+
+    private final int[] streamIds;
+
+    private final long[] deadlines;
+
+    private final Object[] streams;
+
+    /**
+     * 帧流的保留时长，单位 ms
+     */
+    private final long retainTime;
+
+    /**
+     * @param capacity 最多保留的帧流个数
+     * @param retainTime 帧流的保留时长，单位 ms，每次重传后重新计时
+     */
+    RetransmitStore(int capacity, long retainTime) {
+        this.streamIds = new int[capacity];
+        this.deadlines = new long[capacity];
+        this.streams = new Object[capacity];
+        this.retainTime = retainTime;
+    }
+
+    /**
+     * 保留一个已发送完的帧流
+     * @param now 当前时刻，单位 ms
+     */
+    synchronized void put(int streamId, T stream, long now) {
+        // 优先覆盖同一帧流，其次使用空位，都没有时淘汰最早到期的帧流
+        int slot = -1;
+        int oldest = 0;
+        for (int i = 0; i < streams.length; i++) {
+            if (streams[i] != null && streamIds[i] == streamId) {
+                slot = i;
+                break;
+            }
+            if (streams[oldest] != null && (streams[i] == null || deadlines[i] < deadlines[oldest])) {
+                oldest = i;
+            }
+        }
+        if (slot < 0) {
+            slot = oldest;
+        }
+        streamIds[slot] = streamId;
+        streams[slot] = stream;
+        deadlines[slot] = now + retainTime;
+    }
+
+    /**
+     * 查找保留的帧流，找到时重新计时
+     * @param now 当前时刻，单位 ms
+     * @return 保留的帧流，不存在或已过期时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T get(int streamId, long now) {
+        for (int i = 0; i < streams.length; i++) {
+            if (streams[i] == null || streamIds[i] != streamId) {
+                continue;
+            }
+            if (deadlines[i] <= now) {
+                streams[i] = null;
+                return null;
+            }
+            deadlines[i] = now + retainTime;
+            return (T) streams[i];
+        }
+        return null;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = null;
+        }
+    }
+}
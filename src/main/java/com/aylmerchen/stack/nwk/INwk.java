@@ -17,6 +17,21 @@ public interface INwk {
      */
     int HEAD_SIZE_BROADCAST = 28;
 
+    /**
+     * 网络层单播帧帧头长度：广播帧帧头(28)，目的地址(5)，下一跳地址(5)
+     */
+    int HEAD_SIZE_UNICAST = HEAD_SIZE_BROADCAST + 10;
+
+    /**
+     * 网络层紧凑格式广播帧帧头长度：源地址(5)，序列号高字节(1)，控制字节(1)，序列号低字节(1)，发信人地址(5)
+     */
+    int HEAD_SIZE_BROADCAST_COMPACT = 13;
+
+    /**
+     * 网络层紧凑格式单播帧帧头长度：紧凑格式广播帧帧头(13)，目的地址(5)，下一跳地址(5)
+     */
+    int HEAD_SIZE_UNICAST_COMPACT = HEAD_SIZE_BROADCAST_COMPACT + 10;
+
     /**
      * 接收缓冲相对于发送缓冲的冗余大小
      */
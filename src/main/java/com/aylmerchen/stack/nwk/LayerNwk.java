@@ -2,7 +2,9 @@ package com.aylmerchen.stack.nwk;
 
 
 import com.aylmerchen.stack.util.BaseBuffer;
+import com.aylmerchen.stack.util.HashedWheelTimer;
 
+import java.util.Random;
 import java.util.UUID;
 
 /**
@@ -17,7 +19,46 @@ public class LayerNwk implements INwk {
      */
     public static final byte BROADCAST = 1;
 
-//    private static final byte SPECIFIC_RECEIVER = 0;   // 指定目的地址的路由
+    /**
+     * 不同路由类型的路由帧:单播帧，指定目的地址，只由选定的下一跳转发
+     */
+    public static final byte SPECIFIC_RECEIVER = 0;
+
+    /**
+     * 不同路由类型的路由帧:HELLO 帧，携带本节点的一跳邻居列表和选出的中继，只发给一跳邻居，不转发
+     */
+    public static final byte HELLO = 2;
+
+    /**
+     * 紧凑帧头控制字节的最高位，原格式同一位置是 UUID 的版本号 4，以此区分两种格式
+     */
+    private static final int COMPACT_VERSION = 0x80;
+
+    /**
+     * 紧凑帧头控制字节中版本所占的位，第 5、6 位保留为 0
+     */
+    private static final int COMPACT_VERSION_MASK = 0xE0;
+
+    /**
+     * 紧凑帧头控制字节中路由类型所占的位
+     */
+    private static final int COMPACT_TYPE_MASK = 0x18;
+
+    /**
+     * 紧凑帧头控制字节中已经过跳数所占的位
+     */
+    private static final int COMPACT_RIP_MASK = 0x07;
+
+    /**
+     * 紧凑帧头的序列号为 16 位
+     */
+    private static final int SEQ_MASK = 0xFFFF;
+
+    /**
+     * 地址字段为 5 字节
+     */
+    private static final long ADDRESS_MASK = 0xFFFFFFFFFFL;
+
 //    private static final byte REQ_NEXT_HELLO = 2;      // 请求验证路由有效,验证下一跳路由是否在线
 //    private static final byte REP_NEXT_ACK  = 3;       // 下一跳地址路径验证成功
 //    private static final byte REQ_SEND = 4;            // 下一跳可达，传输数据
@@ -27,7 +68,12 @@ public class LayerNwk implements INwk {
     /**
      * 接收帧缓存最大长度
      */
-    private static final int MAX_RECE_CACHE_SIZE = 100;
+    private static final int MAX_RECE_CACHE_SIZE = 8192;
+
+    /**
+     * 接收帧缓存中记录的存活时长，单位 ms，远大于帧在网络中的存活时长
+     */
+    private static final long RECE_CACHE_EXPIRE_TIME = 60 * 1000;
 
     /**
      * 相邻表中记录的超时时间,单位 ms
@@ -40,12 +86,37 @@ public class LayerNwk implements INwk {
     private static final int MAX_RIP = 3;
 
     /**
-     * 发送的数据部分的最大长度
+     * 邻居的 HELLO 信息在几个发送周期内有效
+     */
+    private static final int HELLO_HOLD_FACTOR = 3;
+
+    /**
+     * HELLO 帧数据部分在位图之前的长度：分片序号(1)，分片个数(1)，邻居个数(1)
+     */
+    private static final int HELLO_HEAD_SIZE = 3;
+
+    /**
+     * 广播帧数据部分的最大长度
      */
     private final int MAX_SEND_ROW_DATA_SIZE;
 
+    /**
+     * 单播帧数据部分的最大长度
+     */
+    private final int MAX_UNICAST_ROW_DATA_SIZE;
+
     private final long USER_ADDRESS;
 
+    /**
+     * 发送时是否使用紧凑帧头
+     */
+    private final boolean COMPACT_HEADER;
+
+    /**
+     * 紧凑帧头的下一个序列号
+     */
+    private int nextSeq;
+
     private BaseBuffer sendBuffer;
     private BaseBuffer receBuffer;
 
@@ -54,7 +125,7 @@ public class LayerNwk implements INwk {
     /**
      * 接收缓冲，缓存接收到的路由帧，用于对比，防止重复接收转发
      */
-    private ReceiveCache<UUID> receCache;
+    private SeqIdCache receCache;
 
     /**
      * 路由表
@@ -66,17 +137,60 @@ public class LayerNwk implements INwk {
      */
     private NearTable nearTable;
 
+    /**
+     * 发送线程查询下一跳，接收线程更新路由表和相邻表，需要互斥
+     */
+    private final Object tableLock = new Object();
 
     /**
-     * 由外部初始化路由层的配置
+     * 泛洪转发抑制，默认关闭
+     */
+    private final RelaySuppressor relaySuppressor;
+
+    /**
+     * 多点中继选择，由 tableLock 保护
+     */
+    private final MprSelector mprSelector;
+
+    /**
+     * HELLO 帧的发送周期，单位 ms，为 0 时不发送 HELLO，所有节点照常转发泛洪帧
+     */
+    private volatile long helloInterval;
+
+    private final HashedWheelTimer.Timeout helloTimeout;
+
+    private final Random random = new Random();
+
+    /**
+     * 发送线程和计时线程（发送 HELLO）共用发送缓冲，需要互斥
+     */
+    private final Object sendLock = new Object();
+
+
+    /**
+     * 由外部初始化路由层的配置，发送原格式帧头
      *
      * @param myAddress 自己的发送地址
      * @param sendBufferSize 网络层收发缓冲的最大长度
      * @param callback 本层对外的回调接口
      */
     public LayerNwk(long myAddress, int sendBufferSize, LayerCallback callback) {
+        this(myAddress, sendBufferSize, false, callback);
+    }
+
+    /**
+     * 由外部初始化路由层的配置
+     *
+     * @param myAddress 自己的发送地址
+     * @param sendBufferSize 网络层收发缓冲的最大长度
+     * @param compactHeader 发送时是否使用紧凑帧头，两种帧头都可以接收
+     * @param callback 本层对外的回调接口
+     */
+    public LayerNwk(long myAddress, int sendBufferSize, boolean compactHeader, LayerCallback callback) {
 
-        MAX_SEND_ROW_DATA_SIZE = sendBufferSize - HEAD_SIZE_BROADCAST;
+        COMPACT_HEADER = compactHeader;
+        MAX_SEND_ROW_DATA_SIZE = sendBufferSize - (compactHeader ? HEAD_SIZE_BROADCAST_COMPACT : HEAD_SIZE_BROADCAST);
+        MAX_UNICAST_ROW_DATA_SIZE = sendBufferSize - (compactHeader ? HEAD_SIZE_UNICAST_COMPACT : HEAD_SIZE_UNICAST);
 
         layerCallback = callback;
 
@@ -85,23 +199,174 @@ public class LayerNwk implements INwk {
         sendBuffer = new BaseBuffer(sendBufferSize);
         receBuffer = new BaseBuffer(sendBufferSize + EXTRA_SIZE);
 
-        receCache = new ReceiveCache<>(MAX_RECE_CACHE_SIZE);
+        receCache = new SeqIdCache(MAX_RECE_CACHE_SIZE, RECE_CACHE_EXPIRE_TIME);
         routeTable = new RouteTable();
         nearTable = new NearTable(MAX_NEAR_TIME_OUT);
+
+        relaySuppressor = new RelaySuppressor(new RelaySuppressor.Sender() {
+            @Override
+            public void relay(byte[] frame) {
+                LayerCallback callback = layerCallback;
+                if (callback != null) {
+                    callback.transfer(frame);
+                }
+            }
+        });
+
+        mprSelector = new MprSelector(myAddress);
+        helloTimeout = HashedWheelTimer.getShared().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                sendHello();
+            }
+        });
+
+        // 随机起始序列号，避免重启后的新帧被邻居当作缓存中的重复帧
+        nextSeq = random.nextInt(SEQ_MASK + 1);
+    }
+
+    /**
+     * 设置 HELLO 帧的发送周期并开始周期发送，开启后泛洪帧只由上一跳选出的中继转发
+     * @param interval 发送周期，单位 ms，为 0 时停止发送
+     */
+    public void setHelloInterval(long interval) {
+        helloInterval = Math.max(0L, interval);
+        synchronized (tableLock) {
+            mprSelector.setHoldTime(HELLO_HOLD_FACTOR * helloInterval);
+        }
+        if (helloInterval > 0) {
+            helloTimeout.start(nextHelloDelay());
+        } else {
+            helloTimeout.cancel();
+        }
     }
 
     /**
-     *  destAddress(5) |   srcAddress  | 数据(<=114)  |
+     * 下一次 HELLO 的延时，加入随机抖动，避免邻居同时发送
+     */
+    private long nextHelloDelay() {
+        long interval = helloInterval;
+        return interval - interval / 4 + (long) (random.nextDouble() * (interval / 2 + 1));
+    }
+
+    /**
+     * 重新选出中继，并将一跳邻居列表和中继标记发给邻居，在计时线程中执行
+     * 数据部分：分片序号(1)，分片个数(1)，邻居个数(1)，中继标记位图(n/8 向上取整)，邻居地址(5n)
+     * 一帧放不下全部邻居时分成多个分片连续发送，接收端按分片合并，保证每个邻居都能判断双向连通
+     */
+    private void sendHello() {
+        if (helloInterval <= 0) {
+            return;
+        }
+        LayerCallback callback = layerCallback;
+        if (callback == null) {
+            return;
+        }
+
+        long[] neighbours;
+        long[] mprs;
+        synchronized (tableLock) {
+            neighbours = nearTable.getNeighbours(HELLO_HOLD_FACTOR * helloInterval);
+            mprSelector.select(neighbours, HashedWheelTimer.now());
+            mprs = mprSelector.getMprs();
+        }
+
+        int perPart = 0;
+        while (perPart < 255 && HELLO_HEAD_SIZE + (perPart + 1 + 7) / 8 + (perPart + 1) * 5 <= MAX_SEND_ROW_DATA_SIZE) {
+            perPart++;
+        }
+        int parts = Math.min(255, Math.max(1, (neighbours.length + perPart - 1) / perPart));
+
+        for (int part = 0; part < parts; part++) {
+            int from = part * perPart;
+            int count = Math.max(0, Math.min(perPart, neighbours.length - from));
+
+            int bitmapSize = (count + 7) / 8;
+            byte[] data = new byte[HELLO_HEAD_SIZE + bitmapSize + count * 5];
+            data[0] = (byte) part;
+            data[1] = (byte) parts;
+            data[2] = (byte) count;
+            for (int i = 0; i < count; i++) {
+                long neighbour = neighbours[from + i];
+                if (contains(mprs, neighbour)) {
+                    data[HELLO_HEAD_SIZE + i / 8] |= (byte) (1 << (i % 8));
+                }
+                putAddress(data, HELLO_HEAD_SIZE + bitmapSize + i * 5, neighbour);
+            }
+
+            callback.transfer(getLocalFrame(HELLO, BROADCAST_ADDRESS, BROADCAST_ADDRESS, data));
+        }
+
+        if (helloInterval > 0) {
+            helloTimeout.start(nextHelloDelay());
+        }
+    }
+
+    /**
+     * 解析邻居的 HELLO 帧分片
+     */
+    private void onHello(long senderAddress, byte[] data) {
+        if (data.length < HELLO_HEAD_SIZE) {
+            return;
+        }
+        int part = data[0] & 0xFF;
+        int parts = data[1] & 0xFF;
+        int count = data[2] & 0xFF;
+        int bitmapSize = (count + 7) / 8;
+        if (part >= parts || data.length < HELLO_HEAD_SIZE + bitmapSize + count * 5) {
+            return;
+        }
+
+        long[] neighbours = new long[count];
+        boolean[] mprFlags = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            int offset = HELLO_HEAD_SIZE + bitmapSize + i * 5;
+            neighbours[i] = generateAddress(data[offset], ((data[offset + 1] & 0xFF) << 24) | ((data[offset + 2] & 0xFF) << 16)
+                    | ((data[offset + 3] & 0xFF) << 8) | (data[offset + 4] & 0xFF));
+            mprFlags[i] = (data[HELLO_HEAD_SIZE + i / 8] & (1 << (i % 8))) != 0;
+        }
+
+        synchronized (tableLock) {
+            mprSelector.onHello(senderAddress, part, parts, neighbours, mprFlags, HashedWheelTimer.now());
+        }
+    }
+
+    /**
+     * 泛洪帧是否需要由本节点继续转发：未开启中继选择时总是转发，否则只有上一跳选中本节点时转发
+     */
+    private boolean isRelayFor(long senderAddress) {
+        if (helloInterval <= 0) {
+            return true;
+        }
+        synchronized (tableLock) {
+            return mprSelector.shouldRelay(senderAddress, HashedWheelTimer.now());
+        }
+    }
+
+    private static boolean contains(long[] array, long value) {
+        for (long temp : array) {
+            if (temp == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 广播地址发送广播帧，其他地址发送单播帧
+     * 单播帧由路由表选出下一跳，只有下一跳转发；没有路由时下一跳为广播地址，按广播帧的方式泛洪，但只有目的节点接收
      *
      * @param destAddress 目的地址
      * @param data   上层传来的数据
      */
     @Override
     public void packaging(long destAddress, byte[] data) {
-        if (data.length <= MAX_SEND_ROW_DATA_SIZE) {
-            // TODO
-            byte[] sendData = (destAddress == BROADCAST_ADDRESS) ? getBroadcastFrame(data) : getSpecificFrame(destAddress, data) ;
-            layerCallback.packageDownward(sendData);
+        if (destAddress == BROADCAST_ADDRESS) {
+            if (data.length <= MAX_SEND_ROW_DATA_SIZE) {
+                layerCallback.packageDownward(getBroadcastFrame(data));
+            }
+        } else if (data.length <= MAX_UNICAST_ROW_DATA_SIZE) {
+            layerCallback.packageDownward(getSpecificFrame(destAddress, data));
         }
     }
 
@@ -109,96 +374,168 @@ public class LayerNwk implements INwk {
      * 生成待发送广播帧
      */
     private byte[] getBroadcastFrame(byte[] data) {
-        return getBroadcastFrame(UUID.randomUUID(), USER_ADDRESS, USER_ADDRESS, 0, data);
+        return getLocalFrame(BROADCAST, 0, 0, data);
     }
 
     /**
-     * 生成待发送的广播帧，帧结构：
-     * 序列号(16),路由类型(1)，源地址(5),发信人地址(5),已经过跳数(1),数据(n)
+     * 生成待发送单播帧
      */
-    private byte[] getBroadcastFrame(UUID uuid, long srcAddress, long senderAddress, int rip, byte[] data){
-
-        // 序列号
-        sendBuffer.putLong(uuid.getMostSignificantBits());
-        sendBuffer.putLong(uuid.getLeastSignificantBits());
+    private byte[] getSpecificFrame(long dest, byte[] data) {
+        return getLocalFrame(SPECIFIC_RECEIVER, dest, getNextHop(dest), data);
+    }
 
-        // 路由类型
-        sendBuffer.putByte(BROADCAST);
+    /**
+     * 生成本节点发出的路由帧，按配置的帧头格式生成序列号
+     */
+    private byte[] getLocalFrame(byte nwkType, long dest, long next, byte[] data) {
+        synchronized (sendLock) {
+            if (COMPACT_HEADER) {
+                return getFrame(true, USER_ADDRESS, takeSeq(), nwkType, USER_ADDRESS, USER_ADDRESS, 0, dest, next, data);
+            }
+            UUID uuid = UUID.randomUUID();
+            return getFrame(false, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), nwkType, USER_ADDRESS, USER_ADDRESS, 0, dest, next, data);
+        }
+    }
 
-        // 源地址
-        setAddress(srcAddress);
+    /**
+     * 取用本机的下一个序列号，持有 sendLock 时调用
+     */
+    private int takeSeq() {
+        int seq = nextSeq;
+        nextSeq = (nextSeq + 1) & SEQ_MASK;
+        return seq;
+    }
 
-        // 发信人地址
-        setAddress(senderAddress);
+    /**
+     * 生成待发送的路由帧，帧结构：
+     * 原格式：序列号(16),路由类型(1)，源地址(5),发信人地址(5),已经过跳数(1),[目的地址(5),下一跳地址(5)],数据(n)
+     * 紧凑格式：源地址(5),序列号高字节(1),控制字节(1),序列号低字节(1),发信人地址(5),[目的地址(5),下一跳地址(5)],数据(n)
+     * 控制字节的高 3 位为 {@link #COMPACT_VERSION}，第 3、4 位为路由类型，低 3 位为已经过跳数
+     *
+     * @param compact 是否为紧凑格式
+     * @param idHigh 原格式为序列号高 8 字节，紧凑格式为源地址
+     * @param idLow 原格式为序列号低 8 字节，紧凑格式为 16 位序列号
+     * @param destAddress 目的地址，仅单播帧使用
+     * @param nextAddress 下一跳地址，仅单播帧使用
+     */
+    private byte[] getFrame(boolean compact, long idHigh, long idLow, byte nwkType, long srcAddress, long senderAddress,
+                            int rip, long destAddress, long nextAddress, byte[] data) {
+        if (compact) {
+            setAddress(srcAddress);
+            sendBuffer.putByte((byte) (idLow >>> 8));
+            sendBuffer.putByte((byte) (COMPACT_VERSION | ((nwkType << 3) & COMPACT_TYPE_MASK) | (rip & COMPACT_RIP_MASK)));
+            sendBuffer.putByte((byte) idLow);
+            setAddress(senderAddress);
+        } else {
+            // 序列号
+            sendBuffer.putLong(idHigh);
+            sendBuffer.putLong(idLow);
+
+            // 路由类型
+            sendBuffer.putByte(nwkType);
+
+            // 源地址
+            setAddress(srcAddress);
+
+            // 发信人地址
+            setAddress(senderAddress);
+
+            // 已经过跳数
+            sendBuffer.putByte((byte) rip);
+        }
 
-        // 已经过跳数
-        sendBuffer.putByte((byte) rip);
+        if (nwkType == SPECIFIC_RECEIVER) {
+            setAddress(destAddress);
+            setAddress(nextAddress);
+        }
 
         // 纯数据
         sendBuffer.put(data);
         return sendBuffer.getAllBytes();
-
     }
 
-    // TODO 生成待发送的非广播帧
-    private byte[] getSpecificFrame(long dest, byte[] data) {
-        return new byte[0];
+    /**
+     * 选择到达目的地址的下一跳：相邻节点直接发送，否则查路由表
+     * @return 下一跳地址，没有路由时返回广播地址
+     */
+    private long getNextHop(long destAddress) {
+        synchronized (tableLock) {
+            if (nearTable.contains(destAddress)) {
+                return destAddress;
+            }
+            return routeTable.getNextHop(destAddress);
+        }
     }
 
-
-
     @Override
     public void unPackaging(byte[] receiveData) {
 
         receBuffer.put(receiveData);
-        UUID uuid = getId();
-        byte nwkType = getNWKType();
-        long srcAddress = getSrcAddress();
-        long senderAddress = getSenderAddress();
-        int  rip = getRip();
-        byte[] data = getData();
 
-        // 不接收自己发送过的包
-        if (srcAddress == USER_ADDRESS) {
+        boolean compact = isCompactFrame();
+        byte nwkType = getNWKType(compact);
+        int headSize = getHeadSize(compact, nwkType);
+        if (receBuffer.getBufferLength() < headSize) {
             receBuffer.clear();
             return;
         }
 
-        // 检查缓冲，是否之前接收过相同的路由包
-        if (receCache.contains(uuid)) {
+        long srcAddress = getSrcAddress(compact);
+        long senderAddress = getSenderAddress(compact);
+        int  rip = getRip(compact);
+
+        // 紧凑格式以 (源地址, 16 位序列号) 标识一帧，序列号回绕一周的时间远大于缓存的存活时长
+        long idHigh = compact ? srcAddress : getIdHigh();
+        long idLow = compact ? getSeq() : getIdLow();
+
+        // 不接收自己发送过的包
+        if (srcAddress == USER_ADDRESS) {
             receBuffer.clear();
             return;
         }
-        receCache.add(uuid);
 
-        // 路由表保存非相邻的节点的路由，如果发信者在路由表中，则之前的路由有误，需要删除
-        if(routeTable.contains(senderAddress)){
-            routeTable.removeRoute(senderAddress);
+        // 检查缓冲，是否之前接收过相同的路由包，重复帧计入转发抑制的计数
+        if (!receCache.add(idHigh, idLow)) {
+            relaySuppressor.onDuplicate(idHigh, idLow);
+            receBuffer.clear();
+            return;
         }
 
-        // 更新相邻表
-        nearTable.updateNeighbour(senderAddress);
-
         // 准备转发，已经过跳数+1
         rip++;
 
-        // 相邻表不包含源地址，说明是非相邻节点，需要更新路由表
-        if (!nearTable.contains(srcAddress)) {
-            routeTable.updateRoute(srcAddress, senderAddress, rip);
+        synchronized (tableLock) {
+            // 路由表保存非相邻的节点的路由，如果发信者在路由表中，则之前的路由有误，需要删除
+            if (routeTable.contains(senderAddress)) {
+                routeTable.removeRoute(senderAddress);
+            }
+
+            // 更新相邻表
+            nearTable.updateNeighbour(senderAddress);
+
+            // 相邻表不包含源地址，说明是非相邻节点，需要更新路由表
+            if (!nearTable.contains(srcAddress)) {
+                routeTable.updateRoute(srcAddress, senderAddress, rip);
+            }
         }
 
-        // TODO 目前只完成针对广播帧的接收转发处理
-        if (nwkType == BROADCAST) {
+        if (nwkType == HELLO) {
+            onHello(senderAddress, getData(headSize));
+
+        } else if (nwkType == SPECIFIC_RECEIVER) {
+            onSpecificFrame(receiveData, compact, idHigh, idLow, srcAddress, senderAddress, rip, headSize);
+
+        } else if (nwkType == BROADCAST) {
 
             // 读取数据送往应用层
-            layerCallback.unPackageUpward(srcAddress, data);
+            layerCallback.unPackageUpward(srcAddress, getData(headSize));
 
-            // 小于跳数界限需要转发
-            if(rip < MAX_RIP){
+            // 小于跳数界限，且本节点是上一跳的中继时需要转发
+            if(rip < MAX_RIP && isRelayFor(senderAddress)){
 
-                // TODO 也可以直接在接收的 receiveData 中修改
-                // 将发信人改为自己，更新跳数，交给下层转发
-                layerCallback.transfer(getBroadcastFrame(uuid, srcAddress, USER_ADDRESS, rip, data));
+                // 将发信人改为自己，更新跳数，直接修改接收的帧交给下层转发
+                rewriteForRelay(receiveData, compact, rip);
+                floodRelay(idHigh, idLow, receiveData);
             }
 
         }
@@ -206,7 +543,79 @@ public class LayerNwk implements INwk {
         receBuffer.clear();
     }
 
+    /**
+     * 单播帧的接收转发处理：目的节点接收，下一跳是自己时选出新的下一跳继续转发，
+     * 泛洪中的单播帧在跳数界限内继续泛洪，知道路由后改为定向转发，其他节点直接丢弃
+     * @param frame 接收的帧，转发时直接修改后交给下层
+     * @param rip 已加 1 的跳数
+     */
+    private void onSpecificFrame(byte[] frame, boolean compact, long idHigh, long idLow, long srcAddress, long senderAddress, int rip, int headSize) {
+        long destAddress = getDestAddress(compact);
+        long nextAddress = getNextAddress(compact);
 
+        if (destAddress == USER_ADDRESS) {
+            layerCallback.unPackageUpward(srcAddress, getData(headSize));
+            return;
+        }
+
+        if ((nextAddress == USER_ADDRESS || nextAddress == BROADCAST_ADDRESS) && rip < MAX_RIP) {
+            long nextHop = getNextHop(destAddress);
+            rewriteForRelay(frame, compact, rip);
+            putAddress(frame, (compact ? HEAD_SIZE_BROADCAST_COMPACT : HEAD_SIZE_BROADCAST) + 5, nextHop);
+
+            // 有路由时定向转发，仍然没有路由时继续泛洪，泛洪只由上一跳的中继转发
+            if (nextHop == BROADCAST_ADDRESS) {
+                if (nextAddress == USER_ADDRESS || isRelayFor(senderAddress)) {
+                    floodRelay(idHigh, idLow, frame);
+                }
+            } else {
+                layerCallback.transfer(frame);
+            }
+        }
+    }
+
+    /**
+     * 泛洪转发，开启抑制时随机退避后转发，退避期间收到足够多的重复帧则取消
+     */
+    private void floodRelay(long idHigh, long idLow, byte[] frame) {
+        if (!relaySuppressor.schedule(idHigh, idLow, frame)) {
+            layerCallback.transfer(frame);
+        }
+    }
+
+    /**
+     * 设置泛洪转发的抑制参数
+     * @param threshold 退避期间收到的份数（包括第一次收到的那一份）达到该值时取消转发，小于 2 时关闭抑制，立即转发
+     * @param backoffWindow 随机退避的最大时长，单位 ms
+     */
+    public void setRelaySuppression(int threshold, long backoffWindow) {
+        relaySuppressor.setConfig(threshold, backoffWindow);
+    }
+
+    /**
+     * 转发前直接修改接收的帧：发信人改为自己，更新已经过跳数，其余字节保持不变
+     * 物理层每次交上来的都是新的帧数组，本层可以直接修改并交给下层
+     */
+    private void rewriteForRelay(byte[] frame, boolean compact, int rip) {
+        if (compact) {
+            putAddress(frame, 8, USER_ADDRESS);
+            frame[6] = (byte) ((frame[6] & ~COMPACT_RIP_MASK) | (rip & COMPACT_RIP_MASK));
+        } else {
+            putAddress(frame, 22, USER_ADDRESS);
+            frame[27] = (byte) rip;
+        }
+    }
+
+    /**
+     * 按 setAddress 的格式将地址写入帧的指定位置
+     */
+    private static void putAddress(byte[] frame, int offset, long address) {
+        frame[offset] = (byte) (address >>> 32);
+        frame[offset + 1] = (byte) (address >>> 24);
+        frame[offset + 2] = (byte) (address >>> 16);
+        frame[offset + 3] = (byte) (address >>> 8);
+        frame[offset + 4] = (byte) address;
+    }
 
     /**
      * 将 地址 拆分存储，即将 5 字节的手机号拆成 1 + 4 两部分
@@ -227,18 +636,51 @@ public class LayerNwk implements INwk {
     }
 
     /**
-     * 读取序列号
-     * @return 序列号
+     * 判断接收的帧是否为紧凑格式：原格式第 6 字节是随机 UUID 的版本号，高 4 位固定为 4，与紧凑格式的版本位不同
+     */
+    private boolean isCompactFrame() {
+        return (receBuffer.getByte(6) & COMPACT_VERSION_MASK) == COMPACT_VERSION;
+    }
+
+    /**
+     * 帧头长度
+     */
+    private int getHeadSize(boolean compact, byte nwkType) {
+        if (nwkType == SPECIFIC_RECEIVER) {
+            return compact ? HEAD_SIZE_UNICAST_COMPACT : HEAD_SIZE_UNICAST;
+        }
+        return compact ? HEAD_SIZE_BROADCAST_COMPACT : HEAD_SIZE_BROADCAST;
+    }
+
+    /**
+     * 读取原格式序列号的高 8 字节
+     */
+    private long getIdHigh() {
+        return receBuffer.getLong(0);
+    }
+
+    /**
+     * 读取原格式序列号的低 8 字节
+     */
+    private long getIdLow() {
+        return receBuffer.getLong(8);
+    }
+
+    /**
+     * 读取紧凑格式的 16 位序列号
      */
-    private UUID getId() {
-        return new UUID(receBuffer.getLong(0), receBuffer.getLong(8));
+    private int getSeq() {
+        return ((receBuffer.getByte(5) & 0xFF) << 8) | (receBuffer.getByte(7) & 0xFF);
     }
 
     /**
      * 读取路由类型
      * @return 路由类型
      */
-    private byte getNWKType() {
+    private byte getNWKType(boolean compact) {
+        if (compact) {
+            return (byte) ((receBuffer.getByte(6) & COMPACT_TYPE_MASK) >> 3);
+        }
         return receBuffer.getByte(16);
     }
 
@@ -246,27 +688,46 @@ public class LayerNwk implements INwk {
      * 读取 源地址 字段
      * @return 源地址
      */
-    private long getSrcAddress() {
-        byte top = receBuffer.getByte(17);
-        int sec = receBuffer.getInt(18);
-        return generateAddress(top, sec);
+    private long getSrcAddress(boolean compact) {
+        return getAddress(compact ? 0 : 17);
     }
 
     /**
      * 读取 发信者 字段
      * @return 发信者
      */
-    private long getSenderAddress() {
-        byte top = receBuffer.getByte(22);
-        int sec = receBuffer.getInt(23);
-        return generateAddress(top, sec);
+    private long getSenderAddress(boolean compact) {
+        return getAddress(compact ? 8 : 22);
+    }
+
+    /**
+     * 读取单播帧的 目的地址 字段
+     */
+    private long getDestAddress(boolean compact) {
+        return getAddress(compact ? HEAD_SIZE_BROADCAST_COMPACT : HEAD_SIZE_BROADCAST);
+    }
+
+    /**
+     * 读取单播帧的 下一跳地址 字段
+     */
+    private long getNextAddress(boolean compact) {
+        long address = getAddress((compact ? HEAD_SIZE_BROADCAST_COMPACT : HEAD_SIZE_BROADCAST) + 5);
+        // 广播地址 -1 只保存了低 5 字节
+        return address == ADDRESS_MASK ? BROADCAST_ADDRESS : address;
+    }
+
+    private long getAddress(int offset) {
+        return generateAddress(receBuffer.getByte(offset), receBuffer.getInt(offset + 1));
     }
 
     /**
      * 读取已经过的跳数
      * @return 已经过的跳数
      */
-    private byte getRip() {
+    private int getRip(boolean compact) {
+        if (compact) {
+            return receBuffer.getByte(6) & COMPACT_RIP_MASK;
+        }
         return receBuffer.getByte(27);
     }
 
@@ -274,8 +735,8 @@ public class LayerNwk implements INwk {
      * 去掉路由头的纯数据部分
      * @return 纯数据
      */
-    private byte[] getData() {
-        return receBuffer.get(28, receBuffer.getBufferLength() - 28);
+    private byte[] getData(int headSize) {
+        return receBuffer.get(headSize, receBuffer.getBufferLength() - headSize);
     }
 
     /** TODO
@@ -291,6 +752,10 @@ public class LayerNwk implements INwk {
 
         // saveTempFile();
 
+        relaySuppressor.cancelAll();
+        helloInterval = 0;
+        helloTimeout.cancel();
+
         if (sendBuffer != null) {
             sendBuffer = null;
         }
@@ -0,0 +1,280 @@
+package com.aylmerchen.stack.nwk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 多点中继（MPR）选择，参考 OLSR
+ * 邻居通过 HELLO 帧交换各自的一跳邻居列表，本节点由此得到两跳视图，
+ * 再从与自己双向连通的邻居中贪心选出能覆盖全部两跳邻居的最小中继集合，在下一个 HELLO 中告知邻居
+ * 泛洪帧只由上一跳选中的中继转发；从没收到过上一跳的 HELLO 时（例如旧版本节点）照常转发，保证可达
+ * 非线程安全，由网络层加锁访问
+ */
+final class MprSelector {
+
+    /**
+     * 邻居的 HELLO 信息，邻居较多时一轮 HELLO 分成多个分片，按分片序号分别保存后合并
+     */
+    private static final class Hello {
+
+        /**
+         * 各分片中的一跳邻居列表，未收到的分片为 null
+         */
+        long[][] parts;
+
+        /**
+         * 各分片中是否包含本节点，以及本节点是否被选为中继
+         */
+        boolean[] partSymmetric;
+
+        boolean[] partSelectedMe;
+
+        /**
+         * 合并各分片后的一跳邻居列表
+         */
+        long[] neighbours;
+
+        /**
+         * 邻居的 HELLO 中是否包含本节点，即双向连通
+         */
+        boolean symmetric;
+
+        /**
+         * 邻居是否选了本节点作为中继
+         */
+        boolean selectedMe;
+
+        long receiveTime;
+    }
+
+    private final long myAddress;
+
+    /**
+     * 各邻居最近的 HELLO 信息，按地址排序，选择中继时依次遍历
+     */
+    private final TreeMap<Long, Hello> hellos = new TreeMap<>();
+
+    /**
+     * 当前选出的中继集合
+     */
+    private long[] mprs = new long[0];
+
+    /**
+     * HELLO 信息的有效时长，单位 ms
+     */
+    private long holdTime;
+
+    MprSelector(long myAddress) {
+        this.myAddress = myAddress;
+    }
+
+    void setHoldTime(long holdTime) {
+        this.holdTime = holdTime;
+    }
+
+    /**
+     * 收到邻居的 HELLO 分片，分片个数变化时丢弃之前的分片
+     * @param part 分片序号
+     * @param parts 分片个数
+     * @param neighbours 本分片中的一跳邻居列表
+     * @param mprFlags 与 neighbours 一一对应，该邻居是否被选为中继
+     */
+    void onHello(long sender, int part, int parts, long[] neighbours, boolean[] mprFlags, long now) {
+        Hello hello = hellos.get(sender);
+        if (hello == null) {
+            hello = new Hello();
+            hellos.put(sender, hello);
+        }
+        if (hello.parts == null || hello.parts.length != parts) {
+            hello.parts = new long[parts][];
+            hello.partSymmetric = new boolean[parts];
+            hello.partSelectedMe = new boolean[parts];
+        }
+
+        hello.parts[part] = neighbours;
+        hello.partSymmetric[part] = false;
+        hello.partSelectedMe[part] = false;
+        for (int i = 0; i < neighbours.length; i++) {
+            if (neighbours[i] == myAddress) {
+                hello.partSymmetric[part] = true;
+                hello.partSelectedMe[part] = mprFlags[i];
+                break;
+            }
+        }
+        hello.receiveTime = now;
+
+        int total = 0;
+        hello.symmetric = false;
+        hello.selectedMe = false;
+        for (int i = 0; i < parts; i++) {
+            if (hello.parts[i] != null) {
+                total += hello.parts[i].length;
+                hello.symmetric |= hello.partSymmetric[i];
+                hello.selectedMe |= hello.partSelectedMe[i];
+            }
+        }
+        long[] merged = new long[total];
+        int index = 0;
+        for (int i = 0; i < parts; i++) {
+            if (hello.parts[i] != null) {
+                System.arraycopy(hello.parts[i], 0, merged, index, hello.parts[i].length);
+                index += hello.parts[i].length;
+            }
+        }
+        hello.neighbours = merged;
+    }
+
+    /**
+     * 收到上一跳转发的泛洪帧后，判断本节点是否需要继续转发
+     */
+    boolean shouldRelay(long senderAddress, long now) {
+        Hello hello = hellos.get(senderAddress);
+        if (hello == null || now - hello.receiveTime > holdTime) {
+            return true;
+        }
+        return hello.selectedMe;
+    }
+
+    boolean isMpr(long address) {
+        for (long mpr : mprs) {
+            if (mpr == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 根据当前的一跳邻居和两跳视图重新选出中继集合：
+     * 先选出两跳邻居的唯一覆盖者，再每次选覆盖剩余两跳邻居最多的邻居，直到全部覆盖
+     * @param oneHop 当前的一跳邻居
+     */
+    void select(long[] oneHop, long now) {
+        removeExpired(now);
+
+        // 候选中继：与本节点双向连通的邻居
+        List<Hello> candidates = new ArrayList<>();
+        List<Long> candidateAddress = new ArrayList<>();
+        for (Map.Entry<Long, Hello> entry : hellos.entrySet()) {
+            if (entry.getValue().symmetric) {
+                candidates.add(entry.getValue());
+                candidateAddress.add(entry.getKey());
+            }
+        }
+
+        // 待覆盖的两跳邻居，不含本节点和一跳邻居
+        TreeSet<Long> uncovered = new TreeSet<>();
+        for (Hello hello : candidates) {
+            for (long address : hello.neighbours) {
+                if (address != myAddress && !contains(oneHop, address) && !contains(candidateAddress, address)) {
+                    uncovered.add(address);
+                }
+            }
+        }
+
+        List<Long> selected = new ArrayList<>();
+        boolean[] used = new boolean[candidates.size()];
+
+        // 两跳邻居只有一个覆盖者时，该覆盖者必须选中
+        for (long target : uncovered) {
+            int only = -1;
+            for (int c = 0; c < candidates.size(); c++) {
+                if (contains(candidates.get(c).neighbours, target)) {
+                    if (only != -1) {
+                        only = -2;
+                        break;
+                    }
+                    only = c;
+                }
+            }
+            if (only >= 0 && !used[only]) {
+                used[only] = true;
+                selected.add(candidateAddress.get(only));
+            }
+        }
+        for (int c = 0; c < candidates.size(); c++) {
+            if (used[c]) {
+                cover(uncovered, candidates.get(c).neighbours);
+            }
+        }
+
+        // 贪心选覆盖最多的候选
+        while (!uncovered.isEmpty()) {
+            int best = -1;
+            int bestCount = 0;
+            for (int c = 0; c < candidates.size(); c++) {
+                if (used[c]) {
+                    continue;
+                }
+                int count = 0;
+                for (long address : candidates.get(c).neighbours) {
+                    if (uncovered.contains(address)) {
+                        count++;
+                    }
+                }
+                if (count > bestCount) {
+                    best = c;
+                    bestCount = count;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            used[best] = true;
+            selected.add(candidateAddress.get(best));
+            cover(uncovered, candidates.get(best).neighbours);
+        }
+
+        long[] result = new long[selected.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = selected.get(i);
+        }
+        mprs = result;
+    }
+
+    long[] getMprs() {
+        return mprs;
+    }
+
+    void clear() {
+        hellos.clear();
+        mprs = new long[0];
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Hello> it = hellos.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().receiveTime > holdTime) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void cover(TreeSet<Long> uncovered, long[] neighbours) {
+        for (long address : neighbours) {
+            uncovered.remove(address);
+        }
+    }
+
+    private static boolean contains(long[] array, long value) {
+        for (long temp : array) {
+            if (temp == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(List<Long> list, long value) {
+        for (Long temp : list) {
+            if (temp == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,12 +1,13 @@
 package com.aylmerchen.stack.nwk;
 
-import android.util.LongSparseArray;
-
-import java.text.SimpleDateFormat;
-import java.util.Locale;
+import com.aylmerchen.stack.util.HashedWheelTimer;
 
 /**
  * 相邻表
+ * 地址到最近更新时刻的映射，基于开放寻址表和按更新时刻排序的双向链表（LRU），全部使用基本类型数组，更新时不分配内存
+ * 时刻取自全局单调时钟 {@link HashedWheelTimer#now()}，链表尾部总是最久未更新的记录，
+ * 每次更新和查询前顺带从尾部清除超时记录，均摊 O(1)；记录数达到容量时淘汰最久未更新的记录
+ * 不依赖 Android，非线程安全
  *
  * @author Lasern
  * @date 2018/3/22
@@ -14,46 +15,132 @@ import java.util.Locale;
 
 public class NearTable {
 
+   /**
+    * 默认容量
+    */
+   public static final int DEFAULT_CAPACITY = 256;
+
+   private static final int EMPTY = -1;
+
    /**
     * 临近节点更新超时标准，单位 ms,即临近节点的记录超过该时间没有更新则应删除该条记录
     */
    private final long TIME_OUT;
 
+   private final int capacity;
+
+   /**
+    * 开放寻址表，保存记录下标，长度为 2 的幂，至少是容量的 2 倍
+    */
+   private final int[] slots;
+
+   private final int slotMask;
+
+   private final long[] addresses;
+
+   private final long[] updateTimes;
+
    /**
-    * key:临近节点地址 value:更新时间
+    * 链表的前驱（更新的记录）和后继（更旧的记录）
     */
-   private LongSparseArray<Long> nearTable;
+   private final int[] prev;
+
+   private final int[] next;
+
+   /**
+    * 每条记录所在的表下标
+    */
+   private final int[] slotOf;
+
+   /**
+    * 最近更新的记录
+    */
+   private int head = EMPTY;
+
+   /**
+    * 最久未更新的记录
+    */
+   private int tail = EMPTY;
+
+   /**
+    * 空闲记录链表，用 next 串联
+    */
+   private int free;
+
+   private int size;
 
    public NearTable(){
-       this.TIME_OUT = 5 * 60 * 1000;
+       this(5 * 60 * 1000);
    }
 
-   public NearTable(int timeOut) {
+   public NearTable(long timeOut) {
+       this(timeOut, DEFAULT_CAPACITY);
+   }
+
+   /**
+    * @param timeOut 记录超时时间，单位 ms
+    * @param capacity 最多保存的相邻节点个数
+    */
+   public NearTable(long timeOut, int capacity) {
        this.TIME_OUT = timeOut;
-       this.nearTable = new LongSparseArray<>();
+       this.capacity = Math.max(1, capacity);
+
+       int tableSize = Integer.highestOneBit(this.capacity) << 2;
+       slots = new int[tableSize];
+       slotMask = tableSize - 1;
+       for (int i = 0; i < tableSize; i++) {
+           slots[i] = EMPTY;
+       }
+
+       addresses = new long[this.capacity];
+       updateTimes = new long[this.capacity];
+       prev = new int[this.capacity];
+       next = new int[this.capacity];
+       slotOf = new int[this.capacity];
+       for (int i = 0; i < this.capacity; i++) {
+           next[i] = i + 1 < this.capacity ? i + 1 : EMPTY;
+       }
+       free = 0;
    }
 
 
    /**
-    * 更新相邻表，有则更新，无则添加
+    * 更新相邻表，有则更新，无则添加，已满时淘汰最久未更新的记录
     * @param address 待更新的地址
     */
    public void updateNeighbour(long address) {
-       nearTable.put(address, System.currentTimeMillis());
+       long now = HashedWheelTimer.now();
+       checkNeighbour(now);
+
+       int slot = indexOf(address);
+       int index = slots[slot];
+       if (index != EMPTY) {
+           unlink(index);
+       } else {
+           if (size == capacity) {
+               remove(tail);
+               slot = indexOf(address);
+           }
+           index = free;
+           free = next[index];
+           addresses[index] = address;
+           slotOf[index] = slot;
+           slots[slot] = index;
+           size++;
+       }
+       updateTimes[index] = now;
+       linkHead(index);
    }
 
 
    /**
-    * 供外部定时线程调用，定时对相邻表进行检查
-    * @param checkTime 检查时刻
+    * 从最久未更新的记录开始清除超时记录，更新和查询时会自动调用
+    * 原先由外部传入墙上时间调用，时间基准改为 {@link HashedWheelTimer#now()} 后不再对外暴露，避免混用两种时间清空整张表
+    * @param checkTime 检查时刻，基于 {@link HashedWheelTimer#now()}
     */
-   public void checkNeighbour(long checkTime) {
-
-       for(int i = 0; i < nearTable.size(); i++){
-           long time = nearTable.valueAt(i);
-           if (checkTime - time >= TIME_OUT) {
-               nearTable.removeAt(i);
-           }
+   private void checkNeighbour(long checkTime) {
+       while (tail != EMPTY && checkTime - updateTimes[tail] >= TIME_OUT) {
+           remove(tail);
        }
    }
 
@@ -63,20 +150,113 @@ public class NearTable {
     * @return true/false
     */
    public boolean contains(long address) {
-       return nearTable.get(address) != null;
+       checkNeighbour(HashedWheelTimer.now());
+       return slots[indexOf(address)] != EMPTY;
+   }
+
+   /**
+    * 获取最近仍有通信的相邻节点
+    * @param maxAge 最长未更新时间，单位 ms
+    * @return 相邻节点地址，从最近更新的开始
+    */
+   public long[] getNeighbours(long maxAge) {
+       long now = HashedWheelTimer.now();
+       checkNeighbour(now);
+
+       int count = 0;
+       for (int i = head; i != EMPTY && now - updateTimes[i] <= maxAge; i = next[i]) {
+           count++;
+       }
+       long[] result = new long[count];
+       int i = head;
+       for (int k = 0; k < count; k++) {
+           result[k] = addresses[i];
+           i = next[i];
+       }
+       return result;
+   }
+
+   public int size() {
+       return size;
+   }
+
+   private int indexOf(long address) {
+       int slot = hash(address) & slotMask;
+       while (true) {
+           int index = slots[slot];
+           if (index == EMPTY || addresses[index] == address) {
+               return slot;
+           }
+           slot = (slot + 1) & slotMask;
+       }
+   }
+
+   /**
+    * 删除一条记录，之后把同一探测链上的记录前移填补空位
+    */
+   private void remove(int index) {
+       unlink(index);
+       next[index] = free;
+       free = index;
+       size--;
+
+       int hole = slotOf[index];
+       slots[hole] = EMPTY;
+       int slot = (hole + 1) & slotMask;
+       while (slots[slot] != EMPTY) {
+           int moved = slots[slot];
+           int home = hash(addresses[moved]) & slotMask;
+           if (((slot - home) & slotMask) >= ((slot - hole) & slotMask)) {
+               slots[hole] = moved;
+               slotOf[moved] = hole;
+               slots[slot] = EMPTY;
+               hole = slot;
+           }
+           slot = (slot + 1) & slotMask;
+       }
+   }
+
+   private void linkHead(int index) {
+       prev[index] = EMPTY;
+       next[index] = head;
+       if (head != EMPTY) {
+           prev[head] = index;
+       }
+       head = index;
+       if (tail == EMPTY) {
+           tail = index;
+       }
+   }
+
+   private void unlink(int index) {
+       int before = prev[index];
+       int after = next[index];
+       if (before != EMPTY) {
+           next[before] = after;
+       } else {
+           head = after;
+       }
+       if (after != EMPTY) {
+           prev[after] = before;
+       } else {
+           tail = before;
+       }
+   }
+
+   private static int hash(long address) {
+       long h = address * 0x9E3779B97F4A7C15L;
+       return (int) (h ^ (h >>> 32));
    }
 
 
    @Override
    public String toString() {
-       final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss:SSS", Locale.CHINA);
+       long now = HashedWheelTimer.now();
 
        StringBuilder temp = new StringBuilder();
 
-       for(int i = 0; i < nearTable.size(); i++){
-           long address = nearTable.keyAt(i);
-           long time = nearTable.get(address);
-           temp.append("Address:").append(address).append(" ,time:").append(sdf.format(time)).append("\n");
+       for (int i = head; i != EMPTY; i = next[i]) {
+           temp.append("Address:").append(addresses[i]).append(" ,age:").append(now - updateTimes[i]).append(" ms\n");
        }
        return temp.toString();
    }
@@ -0,0 +1,162 @@
+package com.aylmerchen.stack.nwk;
+
+import com.aylmerchen.stack.util.HashedWheelTimer;
+
+import java.util.Random;
+
+/**
+ * 基于计数的广播转发抑制
+ * 中继收到需要泛洪转发的帧后不立即转发，而是随机退避一段时间，期间每收到一份重复帧计数加 1，
+ * 退避结束前累计收到的份数达到阈值，说明周围已经有足够多的节点转发过，取消本次转发
+ * 等待中的转发个数有上限，槽位用完时由调用方直接转发
+ * 线程安全，到期的转发在计时线程中交出；计时线程在时间轮的锁外执行任务，所以可以在本类的锁内启动和取消定时任务
+ */
+final class RelaySuppressor {
+
+    /**
+     * 最多同时等待的转发个数
+     */
+    private static final int MAX_PENDING = 32;
+
+    interface Sender {
+        /**
+         * 退避结束，没有被抑制的帧交由外部转发
+         */
+        void relay(byte[] frame);
+    }
+
+    private final Sender sender;
+
+    private final Random random = new Random();
+
+    private final Pending[] pendings = new Pending[MAX_PENDING];
+
+    /**
+     * 收到份数的阈值，包括第一次收到的那一份
+     */
+    private volatile int threshold;
+
+    /**
+     * 随机退避的最大时长，单位 ms
+     */
+    private volatile long backoffWindow;
+
+    RelaySuppressor(Sender sender) {
+        this.sender = sender;
+        for (int i = 0; i < MAX_PENDING; i++) {
+            pendings[i] = new Pending();
+        }
+    }
+
+    /**
+     * @param threshold 收到份数的阈值，小于 2 时关闭抑制，所有帧都立即转发
+     * @param backoffWindow 随机退避的最大时长，单位 ms
+     */
+    void setConfig(int threshold, long backoffWindow) {
+        this.threshold = threshold;
+        this.backoffWindow = Math.max(0L, backoffWindow);
+    }
+
+    boolean isEnabled() {
+        return threshold >= 2;
+    }
+
+    /**
+     * 登记一次待转发的帧，随机退避后转发
+     * @param frame 已改写好的待转发帧，等待期间不能再修改
+     * @return 没有空闲槽位或抑制已关闭时返回 false，由调用方立即转发
+     */
+    boolean schedule(long idHigh, long idLow, byte[] frame) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        synchronized (this) {
+            Pending pending = findFree();
+            if (pending == null) {
+                return false;
+            }
+            pending.idHigh = idHigh;
+            pending.idLow = idLow;
+            pending.frame = frame;
+            pending.count = 1;
+            pending.timeout.start((long) (random.nextDouble() * (backoffWindow + 1)));
+            return true;
+        }
+    }
+
+    /**
+     * 收到一份重复帧，等待中的转发计数加 1，达到阈值时取消转发
+     */
+    synchronized void onDuplicate(long idHigh, long idLow) {
+        for (Pending pending : pendings) {
+            if (pending.frame != null && pending.idHigh == idHigh && pending.idLow == idLow) {
+                if (++pending.count >= threshold) {
+                    pending.frame = null;
+                    pending.timeout.cancel();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 取消所有等待中的转发
+     */
+    synchronized void cancelAll() {
+        for (Pending pending : pendings) {
+            pending.frame = null;
+            pending.timeout.cancel();
+        }
+    }
+
+    private Pending findFree() {
+        for (Pending pending : pendings) {
+            if (pending.frame == null && !pending.timeout.isPending()) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 退避结束，仍未被抑制则交出转发
+     */
+    private void onExpired(Pending pending) {
+        byte[] frame;
+        synchronized (this) {
+            frame = pending.frame;
+            pending.frame = null;
+        }
+        if (frame != null) {
+            sender.relay(frame);
+        }
+    }
+
+    /**
+     * 一个等待中的转发，定时任务句柄可反复使用
+     */
+    private final class Pending implements Runnable {
+
+        long idHigh;
+
+        long idLow;
+
+        /**
+         * 待转发的帧，为 null 时槽位空闲
+         */
+        byte[] frame;
+
+        /**
+         * 已收到的份数
+         */
+        int count;
+
+        final HashedWheelTimer.Timeout timeout = HashedWheelTimer.getShared().newTimeout(this);
+
+        @Override
+        public void run() {
+            onExpired(this);
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package com.aylmerchen.stack.nwk;
 
 
-import android.util.LongSparseArray;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.aylmerchen.stack.util.HashedWheelTimer;
 
 /**
  * 路由表
+ * 每条路由为 (目的地址, 下一跳地址, 跳数, 更新时刻)，全部使用基本类型数组保存：
+ * 1. 路由表按 (目的地址, 下一跳地址) 索引，用于逐条增删
+ * 2. 目的表按目的地址索引到该目的地址的路由链，链按跳数从小到大排列，链首即最优路由，查询下一跳 O(1)
+ * 3. 所有路由按更新时刻串成双向链表，尾部总是最久未更新的路由，每次操作前顺带清除超时路由，均摊 O(1)；
+ *    路由数达到容量时淘汰最久未更新的路由
+ * 时刻取自全局单调时钟 {@link HashedWheelTimer#now()}，非线程安全
  *
  * @author Lasern
  * @date 2018/3/21
@@ -16,47 +19,128 @@ import java.util.List;
 public class RouteTable {
 
     /**
-     * 具体路由表，
-     * 键：目的地址
-     * 值：到达该目的地址的所有路由
+     * 默认的路由超时时间，单位 ms
+     */
+    public static final long DEFAULT_TIME_OUT = 5 * 60 * 1000;
+
+    /**
+     * 默认容量
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int EMPTY = -1;
+
+    /**
+     * 路由超时时间，单位 ms，超过该时间没有更新的路由会被删除
+     */
+    private final long TIME_OUT;
+
+    private final int capacity;
+
+    /**
+     * 路由表，按 (目的地址, 下一跳地址) 保存路由下标
+     */
+    private final int[] routeSlots;
+
+    /**
+     * 目的表，按目的地址保存路由链首的下标
+     */
+    private final int[] destSlots;
+
+    private final int slotMask;
+
+    private final long[] destAddresses;
+
+    private final long[] nextAddresses;
+
+    private final int[] rips;
+
+    private final long[] updateTimes;
+
+    /**
+     * 同一目的地址的路由链中的下一条，按跳数从小到大
+     */
+    private final int[] chainNext;
+
+    /**
+     * 更新时刻链表中的前驱（更新的路由）和后继（更旧的路由），空闲路由用 ageNext 串联
      */
-    private LongSparseArray<List<SingleRoute>> routeTable;
+    private final int[] agePrev;
+
+    private final int[] ageNext;
+
+    private int newest = EMPTY;
+
+    private int oldest = EMPTY;
+
+    private int free;
+
+    private int size;
 
     public RouteTable() {
-        this.routeTable = new LongSparseArray<>();
+        this(DEFAULT_TIME_OUT, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param timeOut 路由超时时间，单位 ms
+     * @param capacity 最多保存的路由条数
+     */
+    public RouteTable(long timeOut, int capacity) {
+        this.TIME_OUT = timeOut;
+        this.capacity = Math.max(1, capacity);
+
+        int tableSize = Integer.highestOneBit(this.capacity) << 2;
+        routeSlots = new int[tableSize];
+        destSlots = new int[tableSize];
+        slotMask = tableSize - 1;
+        for (int i = 0; i < tableSize; i++) {
+            routeSlots[i] = EMPTY;
+            destSlots[i] = EMPTY;
+        }
+
+        destAddresses = new long[this.capacity];
+        nextAddresses = new long[this.capacity];
+        rips = new int[this.capacity];
+        updateTimes = new long[this.capacity];
+        chainNext = new int[this.capacity];
+        agePrev = new int[this.capacity];
+        ageNext = new int[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            ageNext[i] = i + 1 < this.capacity ? i + 1 : EMPTY;
+        }
+        free = 0;
     }
 
     /**
-     * 新增加一条路由记录
+     * 新增或更新一条路由记录，已存在时按最新的跳数更新
      * @param destAddress 目的地址
      * @param nextAddress 下一跳地址
      * @param rip 新的跳数
      */
     public void updateRoute(long destAddress, long nextAddress, int rip) {
+        long now = HashedWheelTimer.now();
+        expire(now);
 
-        if (contains(destAddress)) {
-
-            // 若已存在记录则更新
-            List<SingleRoute> routeList = routeTable.get(destAddress);
-            for (SingleRoute temp : routeList) {
-
-                // 如果存在对应的下一跳地址记录且跳数更小，则更新跳数
-                if(temp.getNextAddress() == nextAddress){
-                    if(temp.getRip() > rip){
-                        temp.updateRip(rip);
-                        temp.updateTime(System.currentTimeMillis());
-                    }
-                    break;
-                }
-            }
-
+        int index = routeSlots[routeSlot(destAddress, nextAddress)];
+        if (index != EMPTY) {
+            unlinkAge(index);
+            unlinkChain(index);
         } else {
-
-            SingleRoute newRoute = new SingleRoute(destAddress, nextAddress, rip, System.currentTimeMillis());
-            List<SingleRoute> routeList = new ArrayList<>(5);
-            routeList.add(newRoute);
-            routeTable.put(destAddress, routeList);
+            if (size == capacity) {
+                remove(oldest);
+            }
+            index = free;
+            free = ageNext[index];
+            destAddresses[index] = destAddress;
+            nextAddresses[index] = nextAddress;
+            routeSlots[routeSlot(destAddress, nextAddress)] = index;
+            size++;
         }
+
+        rips[index] = rip;
+        updateTimes[index] = now;
+        linkAge(index);
+        linkChain(index);
     }
 
     /**
@@ -65,7 +149,19 @@ public class RouteTable {
      * @return 是否存在该记录
      */
     public boolean contains(long destAddress) {
-        return routeTable.get(destAddress) != null;
+        expire(HashedWheelTimer.now());
+        return destSlots[destSlot(destAddress)] != EMPTY;
+    }
+
+    /**
+     * 获取到达目的地址跳数最少的路由的下一跳
+     * @param destAddress 目的地址
+     * @return 下一跳地址，没有路由时返回 {@link INwk#BROADCAST_ADDRESS}
+     */
+    public long getNextHop(long destAddress) {
+        expire(HashedWheelTimer.now());
+        int head = destSlots[destSlot(destAddress)];
+        return head == EMPTY ? INwk.BROADCAST_ADDRESS : nextAddresses[head];
     }
 
     /**
@@ -74,7 +170,10 @@ public class RouteTable {
      * @param destAddress 目的地址
      */
     public void removeRoute(long destAddress){
-        routeTable.remove(destAddress);
+        int index;
+        while ((index = destSlots[destSlot(destAddress)]) != EMPTY) {
+            remove(index);
+        }
     }
 
     /**
@@ -84,70 +183,154 @@ public class RouteTable {
      * @param nextAddress 下一跳地址
      */
     public void removeRoute(long destAddress, long nextAddress){
-        routeTable.remove(destAddress);
+        int index = routeSlots[routeSlot(destAddress, nextAddress)];
+        if (index != EMPTY) {
+            remove(index);
+        }
     }
 
-
+    public int size() {
+        return size;
+    }
 
     /**
-     * 路由表单条记录
+     * 从最久未更新的路由开始清除超时路由
      */
-    private static final class SingleRoute{
-
-        /**
-         * 目的地址
-         */
-        private long destAddress;
-
-        /**
-         * 下一跳地址
-         */
-        private long nextAddress;
+    private void expire(long now) {
+        while (oldest != EMPTY && now - updateTimes[oldest] >= TIME_OUT) {
+            remove(oldest);
+        }
+    }
 
-        /**
-         * 所需跳数
-         */
-        private int rip;
+    private void remove(int index) {
+        unlinkAge(index);
+        unlinkChain(index);
+        deleteSlot(routeSlots, routeSlot(destAddresses[index], nextAddresses[index]), true);
 
-        /**
-         * 上一次的路由更新时间
-         */
-        private long time;
+        ageNext[index] = free;
+        free = index;
+        size--;
+    }
 
-        public SingleRoute(long destAddress, long nextAddress, int rip, long time) {
-            this.destAddress = destAddress;
-            this.nextAddress = nextAddress;
-            this.rip = rip;
-            this.time = time;
+    /**
+     * 按跳数插入目的地址的路由链，跳数相同时排在后面
+     */
+    private void linkChain(int index) {
+        int slot = destSlot(destAddresses[index]);
+        int head = destSlots[slot];
+        if (head == EMPTY || rips[index] < rips[head]) {
+            chainNext[index] = head;
+            destSlots[slot] = index;
+            return;
         }
-
-        public long getDestAddress() {
-            return destAddress;
+        int before = head;
+        while (chainNext[before] != EMPTY && rips[chainNext[before]] <= rips[index]) {
+            before = chainNext[before];
         }
+        chainNext[index] = chainNext[before];
+        chainNext[before] = index;
+    }
 
-        public long getNextAddress() {
-            return nextAddress;
+    private void unlinkChain(int index) {
+        int slot = destSlot(destAddresses[index]);
+        int head = destSlots[slot];
+        if (head == index) {
+            if (chainNext[index] != EMPTY) {
+                destSlots[slot] = chainNext[index];
+            } else {
+                deleteSlot(destSlots, slot, false);
+            }
+            return;
+        }
+        int before = head;
+        while (before != EMPTY && chainNext[before] != index) {
+            before = chainNext[before];
         }
+        if (before != EMPTY) {
+            chainNext[before] = chainNext[index];
+        }
+    }
 
-        public int getRip() {
-            return rip;
+    private void linkAge(int index) {
+        agePrev[index] = EMPTY;
+        ageNext[index] = newest;
+        if (newest != EMPTY) {
+            agePrev[newest] = index;
+        }
+        newest = index;
+        if (oldest == EMPTY) {
+            oldest = index;
         }
+    }
 
-        public void updateRip(int rip) {
-            this.rip = rip;
+    private void unlinkAge(int index) {
+        int before = agePrev[index];
+        int after = ageNext[index];
+        if (before != EMPTY) {
+            ageNext[before] = after;
+        } else {
+            newest = after;
         }
+        if (after != EMPTY) {
+            agePrev[after] = before;
+        } else {
+            oldest = before;
+        }
+    }
 
-        public long getTime() {
-            return time;
+    /**
+     * 探测 (目的地址, 下一跳地址) 在路由表中的下标
+     * @return 已存在时为所在下标，否则为第一个空位
+     */
+    private int routeSlot(long destAddress, long nextAddress) {
+        int slot = hash(destAddress, nextAddress) & slotMask;
+        while (true) {
+            int index = routeSlots[slot];
+            if (index == EMPTY || (destAddresses[index] == destAddress && nextAddresses[index] == nextAddress)) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
         }
+    }
 
-        public void updateTime(long time){
-            this.time = time;
+    /**
+     * 探测目的地址在目的表中的下标
+     * @return 已存在时为所在下标，否则为第一个空位
+     */
+    private int destSlot(long destAddress) {
+        int slot = hash(destAddress, 0) & slotMask;
+        while (true) {
+            int index = destSlots[slot];
+            if (index == EMPTY || destAddresses[index] == destAddress) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
         }
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            return obj instanceof SingleRoute && destAddress == ((SingleRoute) obj).destAddress && nextAddress == ((SingleRoute) obj).nextAddress;
+    /**
+     * 删除表中的一项，之后把同一探测链上的项前移填补空位，保证后续探测不断链
+     * @param byRoute true 为路由表，false 为目的表
+     */
+    private void deleteSlot(int[] slots, int hole, boolean byRoute) {
+        slots[hole] = EMPTY;
+        int slot = (hole + 1) & slotMask;
+        while (slots[slot] != EMPTY) {
+            int index = slots[slot];
+            int home = (byRoute ? hash(destAddresses[index], nextAddresses[index]) : hash(destAddresses[index], 0)) & slotMask;
+            if (((slot - home) & slotMask) >= ((slot - hole) & slotMask)) {
+                slots[hole] = index;
+                slots[slot] = EMPTY;
+                hole = slot;
+            }
+            slot = (slot + 1) & slotMask;
         }
     }
+
+    private static int hash(long destAddress, long nextAddress) {
+        long h = destAddress * 0x9E3779B97F4A7C15L + nextAddress;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
 }
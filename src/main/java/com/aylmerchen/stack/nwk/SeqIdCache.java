@@ -0,0 +1,170 @@
+package com.aylmerchen.stack.nwk;
+
+import com.aylmerchen.stack.util.HashedWheelTimer;
+
+/**
+ * 接收帧序列号的去重缓存，序列号按高低两个 long 保存，查找和插入都不产生对象
+ * 哈希部分为线性探测的开放寻址表，表中只存环形队列的下标；环形队列按插入顺序保存序列号和插入时刻，
+ * 容量满时淘汰最早插入的记录，超过存活时长的记录在每次查找前从队首顺带清除
+ * 非线程安全
+ */
+public class SeqIdCache {
+
+    private static final int EMPTY = -1;
+
+    /**
+     * 记录的存活时长，单位 ms
+     */
+    private final long expireTime;
+
+    private final int capacity;
+
+    /**
+     * 开放寻址表，保存环形队列下标，长度为 2 的幂，至少是容量的 2 倍
+     */
+    private final int[] slots;
+
+    private final int slotMask;
+
+    private final long[] ringHigh;
+
+    private final long[] ringLow;
+
+    private final long[] ringTime;
+
+    /**
+     * 环形队列中每条记录所在的表下标，删除时不用再探测
+     */
+    private final int[] ringSlot;
+
+    /**
+     * 最早插入的记录在环形队列中的下标
+     */
+    private int head;
+
+    private int size;
+
+    /**
+     * @param capacity 最多保存的记录个数
+     * @param expireTime 记录的存活时长，单位 ms
+     */
+    public SeqIdCache(int capacity, long expireTime) {
+        this.capacity = Math.max(1, capacity);
+        this.expireTime = expireTime;
+
+        int tableSize = Integer.highestOneBit(this.capacity) << 2;
+        slots = new int[tableSize];
+        slotMask = tableSize - 1;
+        clearSlots();
+
+        ringHigh = new long[this.capacity];
+        ringLow = new long[this.capacity];
+        ringTime = new long[this.capacity];
+        ringSlot = new int[this.capacity];
+    }
+
+    /**
+     * 记录序列号
+     * @return 之前没有记录过该序列号时返回 true，已记录过返回 false
+     */
+    public boolean add(long high, long low) {
+        long now = HashedWheelTimer.now();
+        expire(now);
+
+        int slot = indexOf(high, low);
+        if (slots[slot] != EMPTY) {
+            return false;
+        }
+
+        if (size == capacity) {
+            removeHead();
+            // 删除时表中元素会前移，需要重新探测空位
+            slot = indexOf(high, low);
+        }
+
+        int index = (head + size) % capacity;
+        ringHigh[index] = high;
+        ringLow[index] = low;
+        ringTime[index] = now;
+        ringSlot[index] = slot;
+        slots[slot] = index;
+        size++;
+        return true;
+    }
+
+    public boolean contains(long high, long low) {
+        expire(HashedWheelTimer.now());
+        return slots[indexOf(high, low)] != EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        clearSlots();
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * 从队首清除超过存活时长的记录
+     */
+    private void expire(long now) {
+        while (size > 0 && now - ringTime[head] > expireTime) {
+            removeHead();
+        }
+    }
+
+    /**
+     * 探测序列号所在的表下标
+     * @return 记录过时为记录所在下标，否则为探测到的第一个空位
+     */
+    private int indexOf(long high, long low) {
+        int slot = hash(high, low) & slotMask;
+        while (true) {
+            int index = slots[slot];
+            if (index == EMPTY || (ringHigh[index] == high && ringLow[index] == low)) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /**
+     * 删除最早插入的记录，之后把同一探测链上的记录前移填补空位，保证后续探测不断链
+     */
+    private void removeHead() {
+        int hole = ringSlot[head];
+        slots[hole] = EMPTY;
+        head = (head + 1) % capacity;
+        size--;
+
+        int slot = (hole + 1) & slotMask;
+        while (slots[slot] != EMPTY) {
+            int index = slots[slot];
+            int home = hash(ringHigh[index], ringLow[index]) & slotMask;
+            // home 不在 (hole, slot] 之间时，说明该记录可以前移到 hole
+            if (((slot - home) & slotMask) >= ((slot - hole) & slotMask)) {
+                slots[hole] = index;
+                ringSlot[index] = hole;
+                slots[slot] = EMPTY;
+                hole = slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    private void clearSlots() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = EMPTY;
+        }
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+}
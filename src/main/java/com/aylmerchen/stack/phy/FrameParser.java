@@ -0,0 +1,120 @@
+package com.aylmerchen.stack.phy;
+
+import static com.aylmerchen.stack.phy.IPhy.HEAD_AT;
+import static com.aylmerchen.stack.phy.IPhy.HEAD_SIZE;
+
+/**
+ * 物理层流式帧解析器
+ * 把接收到的蓝牙包看作连续的字节流，在其中搜索帧起始标识 AT+，逐个取出完整的物理层帧，
+ * 不完整的帧尾保留到下一个蓝牙包到达，帧之间的无效数据直接丢弃
+ * 非线程安全
+ */
+final class FrameParser {
+
+    /**
+     * 数据长度字段只有 1 字节，单帧最长 HEAD_SIZE + 255
+     */
+    static final int MAX_FRAME_SIZE = HEAD_SIZE + 0xFF;
+
+    /**
+     * 有效帧的数据长度必须大于该值
+     */
+    private static final int MIN_DATA_LENGTH = 4;
+
+    private final byte[] buffer;
+
+    /**
+     * 缓冲中尚未解析的字节数
+     */
+    private int length;
+
+    FrameParser() {
+        // 容纳两个最长帧，取完所有完整帧之后缓冲一定还有空间追加新数据
+        buffer = new byte[MAX_FRAME_SIZE * 2];
+    }
+
+    /**
+     * 追加接收到的数据，缓冲剩余空间不足时只追加一部分，取出完整帧后再继续追加
+     * @param data 接收到的数据
+     * @param offset 本次追加的起始位置
+     * @return 实际追加的字节数
+     */
+    int append(byte[] data, int offset) {
+        int count = Math.min(data.length - offset, buffer.length - length);
+        System.arraycopy(data, offset, buffer, length, count);
+        length += count;
+        return count;
+    }
+
+    /**
+     * 从缓冲中取出下一个完整帧的数据部分
+     * @return 帧数据，没有完整帧时返回 null
+     */
+    byte[] nextFrame() {
+        while (length >= HEAD_AT.length) {
+
+            int head = indexOfHead();
+            if (head < 0) {
+                // 没有帧起始标识，只保留末尾可能是标识开头的几个字节
+                discard(length - (HEAD_AT.length - 1));
+                return null;
+            }
+            discard(head);
+
+            if (length < HEAD_SIZE) {
+                return null;
+            }
+
+            int dataLength = buffer[HEAD_AT.length] & 0xFF;
+            if (dataLength <= MIN_DATA_LENGTH) {
+                // 长度无效，说明这里的 AT+ 只是数据中的巧合，跳过它重新同步
+                discard(1);
+                continue;
+            }
+
+            if (length < HEAD_SIZE + dataLength) {
+                // 帧尾还未到达
+                return null;
+            }
+
+            byte[] frame = new byte[dataLength];
+            System.arraycopy(buffer, HEAD_SIZE, frame, 0, dataLength);
+            discard(HEAD_SIZE + dataLength);
+            return frame;
+        }
+        return null;
+    }
+
+    /**
+     * 缓冲中是否还有未解析完的数据
+     */
+    boolean hasPending() {
+        return length > 0;
+    }
+
+    void clear() {
+        length = 0;
+    }
+
+    private int indexOfHead() {
+        int last = length - HEAD_AT.length;
+        outer:
+        for (int i = 0; i <= last; i++) {
+            for (int j = 0; j < HEAD_AT.length; j++) {
+                if (buffer[i + j] != HEAD_AT[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void discard(int count) {
+        if (count <= 0) {
+            return;
+        }
+        length -= count;
+        System.arraycopy(buffer, count, buffer, 0, length);
+    }
+}
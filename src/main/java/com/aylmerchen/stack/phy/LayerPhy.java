@@ -6,9 +6,6 @@ import android.util.Log;
 import com.aylmerchen.stack.util.BaseBuffer;
 import com.aylmerchen.stack.util.MyTimer;
 
-import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicBoolean;
-
 import static com.aylmerchen.stack.BuildConfig.debug;
 
 
@@ -27,9 +24,19 @@ public class LayerPhy implements IPhy {
     private final int MAX_SEND_ROW_DATA_SIZE;
 
     /**
-     * 蓝牙包大小，不能超过远端硬件的蓝牙接收属性值的最大长度
+     * 默认蓝牙包大小，不能超过远端硬件的蓝牙接收属性值的最大长度，适用于 BLE 4.0 默认的 MTU(23)
+     */
+    private static final int PACKAGE_DEFAULT_SIZE = 19;
+
+    /**
+     * ATT 写操作的协议头长度：操作码(1) | 属性句柄(2)，单个蓝牙包最多携带 MTU - 3 字节
      */
-    private static final int PACKAGE_MAX_SIZE = 19;
+    private static final int ATT_HEAD_SIZE = 3;
+
+    /**
+     * 当前的蓝牙包大小，由协商后的 MTU 决定，只在帧与帧之间生效
+     */
+    private volatile int packageSize = PACKAGE_DEFAULT_SIZE;
 
     /**
      * 蓝牙包发送时，每个包之间的最长间隔时间
@@ -41,24 +48,20 @@ public class LayerPhy implements IPhy {
      */
     private static final int PACKAGE_RECEIVE_TIMEOUT = 5000;
 
-    private static final int START = 0;
-    private static final int WAIT_PACKAGE = 1;
-
     /**
-     * 接收蓝牙数据 状态机
+     * 接收蓝牙数据的流式帧解析器
      */
-    private int state;
+    private final FrameParser frameParser = new FrameParser();
 
     private MyTimer receiveTimer;
     private Runnable timeoutTask;
 
     /**
-     * 发送蓝牙包后，远端是否接收完成的标志
+     * 发送蓝牙包后，等待远端接收完成的闸门（发送窗口）
      */
-    private static volatile AtomicBoolean isPackageSend = new AtomicBoolean(false);
+    private final SendGate sendGate;
 
     private BaseBuffer sendBuffer;
-    private BaseBuffer receBuffer;
 
     /**
      * 打包 or 解包 完成回调，把结果交回给协议栈上下文
@@ -81,21 +84,42 @@ public class LayerPhy implements IPhy {
 
 
     /**
-     * 物理层 constructor
+     * 物理层 constructor, 发送窗口为 1，即每个蓝牙包都等待远端确认后再发下一个
      * @param sendBufferSize 最大缓冲最大长度
      * @param callback 本层对外的接口
      */
     public LayerPhy(int sendBufferSize, LayerCallback callback) {
+        this(sendBufferSize, 1, callback);
+    }
+
+    /**
+     * 物理层 constructor
+     * @param sendBufferSize 最大缓冲最大长度
+     * @param sendWindow 发送窗口，即最多允许同时等待远端确认的蓝牙包个数
+     * @param callback 本层对外的接口
+     */
+    public LayerPhy(int sendBufferSize, int sendWindow, LayerCallback callback) {
+        this(sendBufferSize, sendWindow, new MyTimer(), callback);
+    }
+
+    /**
+     * 物理层 constructor
+     * @param sendBufferSize 最大缓冲最大长度
+     * @param sendWindow 发送窗口，即最多允许同时等待远端确认的蓝牙包个数
+     * @param receiveTimer 接收超时定时器
+     * @param callback 本层对外的接口
+     */
+    public LayerPhy(int sendBufferSize, int sendWindow, MyTimer receiveTimer, LayerCallback callback) {
 
         MAX_SEND_ROW_DATA_SIZE = sendBufferSize - HEAD_SIZE;
 
+        sendGate = new SendGate(sendWindow);
+
         layerCallback = callback;
 
         sendBuffer = new BaseBuffer(sendBufferSize);
 
-        receBuffer = new BaseBuffer(sendBufferSize + EXTRA_SIZE);
-
-        receiveTimer = new MyTimer();
+        this.receiveTimer = receiveTimer;
         timeoutTask = new Runnable() {
             @Override
             public void run() {
@@ -111,15 +135,27 @@ public class LayerPhy implements IPhy {
      *  帧起始标识(3) |  数据长度(1)  || 数据（n <= 124 ）  |
      *    AT+       |      <=124   ||                   |
      *
+     * 协议栈的发送和外部的转发可能来自不同线程，同一时刻只允许发送一帧，避免不同帧的蓝牙包交错
+     *
      * @param data  待发送的数据
      */
     @Override
-    public void packaging(byte[] data) {
+    public synchronized void packaging(byte[] data) {
         if (data.length <= MAX_SEND_ROW_DATA_SIZE) {
             sendPhyPackage(getPhyPackage(data));
         }
     }
 
+    /**
+     * 发送本机产生的一帧，并标记该帧的最后一个蓝牙包，外设确认该包后可由 {@link #getFrameDrainTime()} 得到排空的时刻
+     * 转发帧直接使用 {@link #packaging(byte[])}，不影响标记，也就不计入本机帧的排空测量
+     * @param data 待发送的数据
+     */
+    public synchronized void packagingFrame(byte[] data) {
+        packaging(data);
+        sendGate.mark();
+    }
+
     /**
      * 生成物理层待发送包
      * @param data 待发送数据
@@ -134,6 +170,7 @@ public class LayerPhy implements IPhy {
 
     /**
      * 发送单个物理层包，单个帧需要分成若干蓝牙包来发送
+     * 发送窗口内的蓝牙包可以连续发出，窗口占满后才等待远端确认
      * @param phyPackage 物理层包
      */
     private void sendPhyPackage(byte[] phyPackage) {
@@ -142,24 +179,24 @@ public class LayerPhy implements IPhy {
             return ;
         }
 
+        // 整帧使用同一个包大小，发送过程中 MTU 改变只对下一帧生效
+        final int size = packageSize;
+
         int position = 0;
         int remainSize = phyPackage.length;
-        byte[] btPackage = new byte[PACKAGE_MAX_SIZE];
+        byte[] btPackage;
 
         while ( remainSize > 0 ) {
 
-            if (remainSize < PACKAGE_MAX_SIZE) {
-                btPackage = new byte[remainSize];
-                System.arraycopy(phyPackage, position, btPackage, 0, remainSize);
-            } else {
-                System.arraycopy(phyPackage, position, btPackage, 0, PACKAGE_MAX_SIZE);
-            }
+            // 窗口内可能有多个包尚未被外部发出，所以每个包都使用独立的数组
+            btPackage = new byte[Math.min(remainSize, size)];
+            System.arraycopy(phyPackage, position, btPackage, 0, btPackage.length);
 
-            position += PACKAGE_MAX_SIZE;
-            remainSize -= PACKAGE_MAX_SIZE;
+            position += size;
+            remainSize -= size;
 
-            // 发送前先将远端接收标识置为false
-            isPackageSend.set(false);
+            // 发送前先占用一个窗口位，窗口已满则等待
+            waitForSendWindow();
 
             if(debug) {
                 Log.e(TAG, "发送蓝牙包, 包长：" + btPackage.length);
@@ -167,167 +204,138 @@ public class LayerPhy implements IPhy {
 
             // 具体与硬件相关的发送函数由外部实现
             phySend(btPackage);
-
-            if (remainSize > 0) {
-                pauseBetweenBtPackages();
-            }
         }
     }
 
     /**
-     * 发送完单个蓝牙包后需要暂停当前的发送线程，等待包发送完毕后的系统回调来唤醒，从而继续发送
+     * 发送窗口占满时需要挂起当前的发送线程，等待包发送完毕后的系统回调来唤醒，从而继续发送
      */
-    private void pauseBetweenBtPackages(){
-        long startTime = System.currentTimeMillis();
-        boolean timeout = false;
-
-        // 当远端唤醒或是超时时跳出
-        while( !isPackageSend.get() && !timeout){
-            if (System.currentTimeMillis() - startTime > PACKAGE_SEND_TIMEOUT) {
-                timeout = true;
-            }
+    private void waitForSendWindow(){
+
+        // 当远端唤醒或是超时时返回，等待期间线程挂起
+        if (!sendGate.acquire(PACKAGE_SEND_TIMEOUT) && debug) {
+            Log.e(TAG, "蓝牙包发送确认超时");
         }
     }
 
     /**
      * TODO 该方法需要在外部调用，从其他线程唤醒发送线程继续发送
+     * 每次调用释放一个发送窗口位
      */
     public void invokePHYSending(){
-        isPackageSend.set(true);
+        sendGate.release();
     }
 
-
-
-
-    @Override
-    public void receive(byte[] btPackage) {
-
-        // 每次接收到数据都需要重启定时器进行延时检测
-        receiveTimer.resetTimer();
-
-        // PACKAGE_RECEIVE_TIMEOUT 秒没接收到下一包 即认为超时
-        receiveTimer.startTimer(timeoutTask, PACKAGE_RECEIVE_TIMEOUT);
-
-        appendPackage(btPackage);
-        if(debug) {
-            Log.e(TAG, "接收到蓝牙包，包长：" + btPackage.length + "， 当前 packageBuffer 长度：" + receBuffer.getBufferLength());
+    /**
+     * 根据协商后的 MTU 调整蓝牙包大小，正在发送的帧不受影响，从下一帧开始生效
+     * @param mtu 协商后的 ATT MTU，不大于 ATT 协议头时忽略
+     */
+    public void setMtu(int mtu) {
+        int size = mtu - ATT_HEAD_SIZE;
+        if (size <= 0) {
+            return;
         }
 
-        switch (state) {
-            case START:
-                if (isFirstPackage()) {
-                    if(debug) {
-                        Log.e(TAG, "处于 START 状态，接收到蓝牙帧的第一个蓝牙包");
-                    }
-
-                    if (isPackageValid()) {
-                        if (isPackageTruncated()) {
-                            if (debug) {
-                                Log.e(TAG, "该帧的所有蓝牙包没有接收完成，继续等待");
-                            }
-                            state = WAIT_PACKAGE;
-                        } else {
-
-                            if(debug) {
-                                Log.e(TAG, "该帧的所有蓝牙包接收完成, 复位包定时器");
-                            }
-
-                            byte[] packageData = getData();
-
-                            // 一帧接收完成，复位定时器
-                            receiveTimer.resetTimer();
-                            resetReceBuffer();
-
-                            // 接收完成，将数据传递给上层
-                            phyReceive(packageData);
-                        }
-                    } else {
-                        receiveTimer.resetTimer();
-                        resetReceBuffer();
-                    }
-
-                } else {
-                    if(debug) {
-                        Log.e(TAG, "处于 START 状态，接收到非蓝牙包");
-                    }
-                    receiveTimer.resetTimer();
-                    resetReceBuffer();
-                }
-                break;
-
-            case WAIT_PACKAGE:
-
-                // 如果接收到的数据比预定接收的数据长，或者接收超时，则认为包已传输结束
-                if ( !isPackageTruncated() ) {
-
-                    if(debug) {
-                        Log.e(TAG, "该帧的所有蓝牙包接收完成，复位包定时器");
-                    }
-                    byte[] packageData = getData();
-
-                    // 一帧接收完成，复位定时器
-                    receiveTimer.resetTimer();
-                    resetReceBuffer();
-                    phyReceive(packageData);
-                }
-                break;
+        // 蓝牙包超过一个完整的物理层帧没有意义
+        packageSize = Math.min(size, MAX_SEND_ROW_DATA_SIZE + HEAD_SIZE);
 
-            default:
-                break;
+        if (debug) {
+            Log.e(TAG, "MTU 更新为：" + mtu + "，蓝牙包大小：" + packageSize);
         }
     }
 
     /**
-     * 追加接收的蓝牙包
-     * @param btPackage 待追加数据
+     * 获取当前的蓝牙包大小
+     * @return 单个蓝牙包的最大长度，单位：字节
      */
-    private void appendPackage(byte[] btPackage) {
-        receBuffer.put(btPackage);
+    public int getPackageSize() {
+        return packageSize;
     }
 
     /**
-     * 只有当有效数据长达大于 4 时( “AT+”（3）+ 数据长度（1）)，接收到的数据包才是有效的
-     * @return
+     * 获取远端已确认的蓝牙包个数
+     * @return 确认个数
      */
-    private boolean isPackageValid() {
-        return getDataLength() > 4;
+    public long getPackageAckCount() {
+        return sendGate.getAckCount();
     }
 
     /**
-     * 读取 帧起始标识 AT+, 判断是不是第一个包
-     * @return
+     * 获取等待远端确认超时的蓝牙包个数
+     * @return 超时个数
      */
-    private boolean isFirstPackage() {
-        return Arrays.equals(HEAD_AT, receBuffer.get(0, 3));
+    public long getPackageTimeoutCount() {
+        return sendGate.getTimeoutCount();
     }
 
     /**
-     * 读取数据长度
-     * @return
+     * 获取已发出但还未得到远端确认的蓝牙包个数
+     * @return 为 0 时表示外设已排空
      */
-    private int getDataLength(){
-        return receBuffer.getByte(3) & 0x000000FF;
+    public int getPackageInFlight() {
+        return sendGate.getInFlight();
     }
 
     /**
-     * 读取数据
-     * @return
+     * 获取最近一次 {@link #packagingFrame(byte[])} 发送的帧被外设排空的时刻
+     * @return 单位 ms，基于 {@link com.aylmerchen.stack.util.HashedWheelTimer#now()}，尚未排空时为 -1
      */
-    private byte[] getData() {
-        return receBuffer.get(4, getDataLength());
+    public long getFrameDrainTime() {
+        return sendGate.getMarkReleaseTime();
     }
 
     /**
-     * 预定接收的收据长度大于实际接收到的数据长度，则认为数据包接收未完成
-     * @return
+     * 获取最近一次远端确认的时刻
+     * @return 单位 ms，基于 {@link com.aylmerchen.stack.util.HashedWheelTimer#now()}
+     */
+    public long getLastAckTime() {
+        return sendGate.getLastAckTime();
+    }
+
+
+
+
+    /**
+     * 接收蓝牙包，一个蓝牙包中可能同时含有上一帧的结尾和下一帧的开头，
+     * 所以每次都取出其中所有的完整帧，只保留不完整的帧尾
+     * @param btPackage 接收到的蓝牙包
      */
-    private boolean isPackageTruncated(){
-        return getDataLength() > receBuffer.getBufferLength() - 4;
+    @Override
+    public void receive(byte[] btPackage) {
+
+        synchronized (frameParser) {
+
+            if (debug) {
+                Log.e(TAG, "接收到蓝牙包，包长：" + btPackage.length);
+            }
+
+            int offset = 0;
+            do {
+                offset += frameParser.append(btPackage, offset);
+
+                byte[] packageData;
+                while ((packageData = frameParser.nextFrame()) != null) {
+                    if (debug) {
+                        Log.e(TAG, "一帧接收完成，帧长：" + packageData.length);
+                    }
+
+                    // 接收完成，将数据传递给上层
+                    phyReceive(packageData);
+                }
+            } while (offset < btPackage.length);
+
+            // 还有不完整的帧尾时需要重启定时器，PACKAGE_RECEIVE_TIMEOUT 秒没接收到下一包 即认为超时
+            receiveTimer.resetTimer();
+            if (frameParser.hasPending()) {
+                receiveTimer.startTimer(timeoutTask, PACKAGE_RECEIVE_TIMEOUT);
+            }
+        }
     }
 
     private void resetReceBuffer(){
-        state = START;
-        receBuffer.clear();
+        synchronized (frameParser) {
+            frameParser.clear();
+        }
     }
 
     @Override
@@ -342,10 +350,6 @@ public class LayerPhy implements IPhy {
             sendBuffer = null;
         }
 
-        if (receBuffer != null) {
-            receBuffer = null;
-        }
-
         layerCallback = null;
     }
 }
@@ -0,0 +1,242 @@
+package com.aylmerchen.stack.phy;
+
+import com.aylmerchen.stack.util.HashedWheelTimer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 物理层发送闸门（发送窗口）
+ * 最多允许 window 个蓝牙包同时等待远端确认，窗口占满时发送线程在此挂起，
+ * 直到外部的写完成回调释放一个窗口位或等待超时，挂起期间不占用 CPU
+ * 远端确认不带包序号，但按发出顺序到达，所以按顺序把确认对应到最早发出的包上，
+ * 已超时让出窗口位的包，其迟到的确认不再释放窗口位
+ * 线程安全
+ */
+final class SendGate {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    /**
+     * 窗口大小，即最多允许同时等待确认的蓝牙包个数
+     */
+    private final int window;
+
+    /**
+     * 已发出但还未得到远端确认的蓝牙包个数，跨帧累计，只由远端确认或等待超时释放
+     */
+    private int inFlight;
+
+    /**
+     * 远端确认的蓝牙包个数
+     */
+    private final AtomicLong ackCount = new AtomicLong();
+
+    /**
+     * 等待确认超时的蓝牙包个数
+     */
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    /**
+     * 最近一次远端确认的时刻，单位 ms
+     */
+    private volatile long lastAckTime;
+
+    /**
+     * 累计占用过的窗口位个数，即发出的蓝牙包总数
+     */
+    private long acquiredCount;
+
+    /**
+     * 累计释放的窗口位个数，包括远端确认和等待超时
+     */
+    private long releasedCount;
+
+    /**
+     * 被标记的蓝牙包的序号，即发出该包后的 acquiredCount
+     */
+    private long markCount;
+
+    /**
+     * 被标记的包及其之前的包全部释放的时刻，单位 ms，尚未释放完时为 -1
+     */
+    private long markReleaseTime = -1;
+
+    /**
+     * 已超时让出窗口位、确认可能仍会迟到的蓝牙包个数，这些包最早发出，接下来的确认先对应到它们
+     */
+    private int lateAcks;
+
+    /**
+     * 有包在途时按迟到处理的确认个数
+     * 超时的包若是真的丢失，下一个包的确认会被误当作迟到的确认，该包随后超时时据此纠正为已确认，不再产生新的迟到确认
+     */
+    private int absorbedAcks;
+
+    /**
+     * 以上两个计数的有效期限，单位 ms，过期后清零，避免一次丢包长期影响之后的确认
+     */
+    private long lateAckDeadline;
+
+    /**
+     * 迟到确认的等待时长，单位 ms，取最近一次超时等待时间的两倍
+     */
+    private long lateAckWindow;
+
+    /**
+     * @param window 发送窗口大小，小于 1 时按 1 处理
+     */
+    SendGate(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * 发出蓝牙包前调用，占用一个窗口位，窗口已满时挂起当前线程，直到远端确认或超时
+     * @param timeoutMs 最长等待时间，单位 ms
+     * @return true 正常获得窗口位，false 等待超时或被中断
+     */
+    boolean acquire(long timeoutMs) {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            boolean acked = true;
+            while (inFlight >= window) {
+                if (nanos <= 0L) {
+                    // 超时则认为最早发出的包已丢失，让出它的窗口位继续发送
+                    long now = HashedWheelTimer.now();
+                    expireLateAcks(now);
+                    inFlight--;
+                    if (absorbedAcks > 0) {
+                        // 之前按迟到处理的确认其实属于这个包，更早超时的包才是真的丢失
+                        absorbedAcks--;
+                        ackCount.incrementAndGet();
+                    } else {
+                        lateAcks++;
+                        timeoutCount.incrementAndGet();
+                    }
+                    lateAckWindow = timeoutMs * 2;
+                    lateAckDeadline = now + lateAckWindow;
+                    onReleased(now);
+                    acked = false;
+                    break;
+                }
+                nanos = released.awaitNanos(nanos);
+            }
+            inFlight++;
+            acquiredCount++;
+            return acked;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 远端确认接收，释放一个窗口位并唤醒发送线程，没有待确认的包或确认属于已超时的包时忽略
+     */
+    void release() {
+        lock.lock();
+        try {
+            long now = HashedWheelTimer.now();
+            expireLateAcks(now);
+            if (lateAcks > 0) {
+                // 已超时的包的迟到确认，它的窗口位已经让出，再释放会使在途包数超过窗口
+                lateAcks--;
+                if (inFlight > 0) {
+                    absorbedAcks++;
+                    lateAckDeadline = now + lateAckWindow;
+                }
+                return;
+            }
+            if (inFlight > 0) {
+                inFlight--;
+                ackCount.incrementAndGet();
+                lastAckTime = now;
+                onReleased(lastAckTime);
+                released.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 迟到确认的计数过期后清零，调用时需持有锁
+     */
+    private void expireLateAcks(long now) {
+        if (now > lateAckDeadline) {
+            lateAcks = 0;
+            absorbedAcks = 0;
+        }
+    }
+
+    /**
+     * 释放一个窗口位后检查被标记的包是否已释放，调用时需持有锁
+     */
+    private void onReleased(long now) {
+        releasedCount++;
+        if (markReleaseTime < 0 && releasedCount >= markCount) {
+            markReleaseTime = now;
+        }
+    }
+
+    /**
+     * 标记最近发出的蓝牙包，之后可以通过 {@link #getMarkReleaseTime()} 得知它何时被释放
+     * 窗口位按发出顺序释放，所以标记的包释放时，在它之前发出的包也都已释放
+     */
+    void mark() {
+        lock.lock();
+        try {
+            markCount = acquiredCount;
+            markReleaseTime = releasedCount >= markCount ? lastAckTime : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 被标记的包及其之前的包全部释放的时刻，单位 ms，尚未释放完时为 -1
+     */
+    long getMarkReleaseTime() {
+        lock.lock();
+        try {
+            return markReleaseTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 已发出但还未得到远端确认的蓝牙包个数
+     */
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getLastAckTime() {
+        return lastAckTime;
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    long getAckCount() {
+        return ackCount.get();
+    }
+
+    long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+}
@@ -28,6 +28,20 @@ public class BaseBuffer {
         return mLength;
     }
 
+    /**
+     * 缓冲的总容量
+     */
+    public int getCapacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * 底层数组，用于直接写入，如解压缩的输出，写入后不会更新数据长度
+     */
+    public byte[] array() {
+        return mBuffer.array();
+    }
+
     /**
      * 读取待发送数据，会将缓冲清空
      * @return 待发送数据
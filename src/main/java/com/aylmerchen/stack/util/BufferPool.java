@@ -0,0 +1,102 @@
+package com.aylmerchen.stack.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * 接收缓冲池，按容量分级缓存用过的 {@link BaseBuffer}，避免每次接收多帧数据都重新分配大块内存
+ * 同一个缓冲池可以由多个协议栈实例共享
+ * 线程安全
+ */
+public class BufferPool {
+
+    /**
+     * 最小的缓冲容量级别 2^8 = 256 字节
+     */
+    private static final int MIN_SHIFT = 8;
+
+    /**
+     * 最大的可缓存容量级别 2^16 = 64K 字节，更大的缓冲用完直接丢弃
+     */
+    private static final int MAX_SHIFT = 16;
+
+    /**
+     * 每个容量级别最多缓存的空闲缓冲个数
+     */
+    private static final int MAX_IDLE_PER_CLASS = 4;
+
+    private final ArrayDeque<BaseBuffer>[] idleBuffers;
+
+    public BufferPool() {
+        idleBuffers = newQueues(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int i = 0; i < idleBuffers.length; i++) {
+            idleBuffers[i] = new ArrayDeque<>(MAX_IDLE_PER_CLASS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<BaseBuffer>[] newQueues(int count) {
+        return (ArrayDeque<BaseBuffer>[]) new ArrayDeque<?>[count];
+    }
+
+    /**
+     * 获取一个容量不小于 minCapacity 的空缓冲
+     * @param minCapacity 所需的最小容量
+     * @return 已清空的缓冲
+     */
+    public BaseBuffer obtain(int minCapacity) {
+        int index = classIndex(minCapacity);
+        if (index < idleBuffers.length) {
+            synchronized (this) {
+                BaseBuffer buffer = idleBuffers[index].pollFirst();
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return new BaseBuffer(1 << (index + MIN_SHIFT));
+        }
+        return new BaseBuffer(minCapacity);
+    }
+
+    /**
+     * 归还不再使用的缓冲
+     * @param buffer 待归还的缓冲，null 时忽略
+     */
+    public void recycle(BaseBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        // 只缓存由本池分配的标准容量的缓冲
+        int capacity = buffer.getCapacity();
+        int index = classIndex(capacity);
+        if (index >= idleBuffers.length || (1 << (index + MIN_SHIFT)) != capacity) {
+            return;
+        }
+
+        buffer.clear();
+        synchronized (this) {
+            if (idleBuffers[index].size() < MAX_IDLE_PER_CLASS) {
+                idleBuffers[index].offerFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * 清空所有空闲缓冲
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<BaseBuffer> idle : idleBuffers) {
+            idle.clear();
+        }
+    }
+
+    /**
+     * 计算容量所属的级别
+     */
+    private static int classIndex(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+}
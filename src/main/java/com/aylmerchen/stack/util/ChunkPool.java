@@ -0,0 +1,138 @@
+package com.aylmerchen.stack.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 定长内存块池，供连接层重组多帧帧流使用
+ * 帧流按实际到达的帧逐块取用，不再按帧头中的帧总数一次性分配，所有使用者取用的总字节数不超过上限
+ * 空闲块最多缓存 {@link #MAX_IDLE_CHUNKS} 个，其余交给 GC 回收
+ * 线程安全
+ */
+public class ChunkPool {
+
+    /**
+     * 默认的块大小，单位：字节
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * 默认的总字节数上限，能容纳一个最大帧流
+     */
+    public static final long DEFAULT_MAX_BYTES = 4L << 20;
+
+    /**
+     * 最多缓存的空闲块个数
+     */
+    private static final int MAX_IDLE_CHUNKS = 64;
+
+    private final int chunkSize;
+
+    private final int maxChunks;
+
+    private final ArrayDeque<byte[]> idleChunks = new ArrayDeque<>();
+
+    /**
+     * 已被取用、还未归还的块个数
+     */
+    private int usedChunks;
+
+    /**
+     * 取用时命中空闲块的次数
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * 取用时新分配块的次数
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * 因总字节数达到上限而淘汰帧流的次数
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public ChunkPool() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param chunkSize 块大小，单位：字节
+     * @param maxBytes 所有使用者取用的总字节数上限，至少为一个块
+     */
+    public ChunkPool(int chunkSize, long maxBytes) {
+        this.chunkSize = chunkSize;
+        this.maxChunks = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, maxBytes / chunkSize));
+    }
+
+    /**
+     * 取用一个块，块中可能残留上一个使用者的数据
+     * @return 块，总字节数已达上限时返回 null
+     */
+    public synchronized byte[] obtain() {
+        if (usedChunks >= maxChunks) {
+            return null;
+        }
+        usedChunks++;
+
+        byte[] chunk = idleChunks.pollFirst();
+        if (chunk != null) {
+            hitCount.incrementAndGet();
+            return chunk;
+        }
+        missCount.incrementAndGet();
+        return new byte[chunkSize];
+    }
+
+    /**
+     * 归还不再使用的块
+     * @param chunk 待归还的块，null 时忽略
+     */
+    public synchronized void recycle(byte[] chunk) {
+        if (chunk == null) {
+            return;
+        }
+        usedChunks--;
+        if (idleChunks.size() < MAX_IDLE_CHUNKS) {
+            idleChunks.offerFirst(chunk);
+        }
+    }
+
+    /**
+     * 使用者因取用失败而淘汰了一个帧流时调用，用于统计
+     */
+    public void recordEviction() {
+        evictionCount.incrementAndGet();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getMaxBytes() {
+        return (long) maxChunks * chunkSize;
+    }
+
+    public synchronized long getUsedBytes() {
+        return (long) usedChunks * chunkSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * 清空所有空闲块
+     */
+    public synchronized void clear() {
+        idleChunks.clear();
+    }
+}
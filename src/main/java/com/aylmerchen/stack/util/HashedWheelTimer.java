@@ -0,0 +1,264 @@
+package com.aylmerchen.stack.util;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 哈希时间轮定时器，所有层、所有协议栈实例共享同一个实例和同一个计时线程
+ *
+ * 1. 超时时刻基于单调时钟 System.nanoTime() 计算，不会因为线程调度而累积误差
+ * 2. 定时任务句柄 {@link Timeout} 可以反复使用，启动和取消都是 O(1)，重新启动时不分配内存
+ * 3. 计时线程在第一次启动定时任务时才创建，没有待触发的任务时一直休眠，不占用 CPU
+ *
+ * 线程安全，定时任务在计时线程中执行，不应有耗时操作
+ */
+public final class HashedWheelTimer {
+
+    private static final String TAG = HashedWheelTimer.class.getSimpleName();
+
+    /**
+     * 时间轮步进，单位 ms
+     */
+    private static final long TICK_MS = 10;
+
+    /**
+     * 时间轮槽数，必须是 2 的幂
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private static final HashedWheelTimer SHARED = new HashedWheelTimer();
+
+    /**
+     * 获取全局共享的时间轮
+     */
+    public static HashedWheelTimer getShared() {
+        return SHARED;
+    }
+
+    private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * 每个槽是一个双向链表的表头
+     */
+    private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition wakeUp = lock.newCondition();
+
+    /**
+     * 已经处理过的最后一个刻度
+     */
+    private long processedTick;
+
+    /**
+     * 待触发的任务个数
+     */
+    private int pendingCount;
+
+    private Thread workerThread;
+
+    private HashedWheelTimer() {
+    }
+
+    /**
+     * 创建一个可反复启动的定时任务句柄
+     * @param task 超时后在计时线程中执行的任务
+     */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(this, task);
+    }
+
+    /**
+     * 当前单调时钟，单位 ms，供各层记录时间戳使用
+     */
+    public static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void schedule(Timeout timeout, long delayMs) {
+        lock.lock();
+        try {
+            unlink(timeout);
+
+            long now = System.nanoTime();
+            if (pendingCount == 0) {
+                // 时间轮空闲了一段时间，直接跳到当前刻度，避免计时线程逐个补算空闲期间的刻度
+                processedTick = Math.max(processedTick, currentTick(now) - 1);
+            }
+
+            long delayTicks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delayMs)) + tickNanos - 1) / tickNanos;
+            timeout.deadlineTick = Math.max(currentTick(now) + delayTicks, processedTick + 1);
+            link(timeout);
+
+            startWorkerIfNeeded();
+            wakeUp.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancel(Timeout timeout) {
+        lock.lock();
+        try {
+            unlink(timeout);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long currentTick(long nanos) {
+        return (nanos - startNanos) / tickNanos;
+    }
+
+    private void link(Timeout timeout) {
+        int index = (int) (timeout.deadlineTick & (WHEEL_SIZE - 1));
+        Timeout head = wheel[index];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        wheel[index] = timeout;
+        timeout.armed = true;
+        pendingCount++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (!timeout.armed) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[(int) (timeout.deadlineTick & (WHEEL_SIZE - 1))] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.armed = false;
+        pendingCount--;
+    }
+
+    private void startWorkerIfNeeded() {
+        if (workerThread != null) {
+            return;
+        }
+        workerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workLoop();
+            }
+        }, TAG);
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    private void workLoop() {
+        while (true) {
+            Timeout expired = null;
+
+            lock.lock();
+            try {
+                if (pendingCount == 0) {
+                    wakeUp.awaitUninterruptibly();
+                    continue;
+                }
+
+                long waitNanos = startNanos + (processedTick + 1) * tickNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    wakeUp.awaitNanos(waitNanos);
+                    continue;
+                }
+
+                // 处理下一个刻度对应的槽，取出所有已到期的任务，未到期的（后几圈的）留在槽中
+                processedTick++;
+                Timeout timeout = wheel[(int) (processedTick & (WHEEL_SIZE - 1))];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= processedTick) {
+                        unlink(timeout);
+                        timeout.nextExpired = expired;
+                        expired = timeout;
+                    }
+                    timeout = next;
+                }
+            } catch (InterruptedException e) {
+                // 计时线程不响应中断，继续计时
+            } finally {
+                lock.unlock();
+            }
+
+            // 在锁外执行任务，任务中可以重新启动自身
+            while (expired != null) {
+                Timeout next = expired.nextExpired;
+                expired.nextExpired = null;
+                try {
+                    expired.task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "定时任务执行出错：" + e);
+                }
+                expired = next;
+            }
+        }
+    }
+
+    /**
+     * 可反复启动的定时任务句柄，非线程安全的使用者需自行保证不同时启动同一个句柄
+     */
+    public static final class Timeout {
+
+        private final HashedWheelTimer timer;
+
+        private final Runnable task;
+
+        private long deadlineTick;
+
+        private boolean armed;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        private Timeout nextExpired;
+
+        private Timeout(HashedWheelTimer timer, Runnable task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        /**
+         * 启动定时任务，已启动时按新的延时重新计时
+         * @param delayMs 延时，单位 ms
+         */
+        public void start(long delayMs) {
+            timer.schedule(this, delayMs);
+        }
+
+        /**
+         * 取消定时任务，未启动时忽略
+         */
+        public void cancel() {
+            timer.cancel(this);
+        }
+
+        /**
+         * 定时任务是否已启动且尚未触发
+         */
+        public boolean isPending() {
+            timer.lock.lock();
+            try {
+                return armed;
+            } finally {
+                timer.lock.unlock();
+            }
+        }
+    }
+}
@@ -4,159 +4,108 @@ package com.aylmerchen.stack.util;
  * Created by Lasern on 2018/1/17.
  */
 
-import java.util.concurrent.atomic.AtomicBoolean;
-
 /**
- * 自定义的定时器类，线程可休眠，节省资源，适合需要重复开启和关闭的场合
+ * 自定义的定时器类，适合需要重复开启和关闭的场合
+ * 基于全局共享的 {@link HashedWheelTimer}，不再独占线程，重复启动时不分配内存
  */
 public class MyTimer {
 
     public static final String TAG = MyTimer.class.getSimpleName();
 
-    private MyTimerImpl myTimerImpl;
+    /**
+     * 时间轮中的任务句柄，反复使用
+     */
+    private final HashedWheelTimer.Timeout timeout;
+
+    /**
+     * 当前的外部任务
+     */
+    private Runnable task;
+
+    /**
+     * 暂停时剩余的延时，单位 ms，未暂停时为 -1
+     */
+    private long remainingDelay = -1;
+
+    /**
+     * 本次计时的超时时刻，单位 ms
+     */
+    private long deadline;
+
+    private volatile boolean cancelled;
+
+    public MyTimer() {
+        timeout = HashedWheelTimer.getShared().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                Runnable outerTask;
+                synchronized (MyTimer.this) {
+
+                    // 触发的同时被重新启动，则以新的计时为准
+                    if (timeout.isPending() || cancelled) {
+                        return;
+                    }
 
-    public void initTimer() {
-        myTimerImpl = new MyTimerImpl();
-        myTimerImpl.start();
+                    // 执行完延时任务则回到空闲状态
+                    outerTask = task;
+                    task = null;
+                }
+                if (outerTask != null) {
+                    outerTask.run();
+                }
+            }
+        });
     }
 
-    public void startTimer(Runnable task, int delay) {
-        if (myTimerImpl != null) {
-            myTimerImpl.startTimer(task, delay);
-        }
+    /**
+     * 共享时间轮在第一次启动定时任务时自动创建计时线程，无需初始化，保留该方法以兼容旧代码
+     */
+    @Deprecated
+    public void initTimer() {
     }
 
-    public void pauseTimer() {
-        if (myTimerImpl != null) {
-            myTimerImpl.pauseTimer();
-        }
+    /**
+     * 启动定时任务，已启动时按新的任务和延时重新计时
+     * @param task 延时任务，在共享的计时线程中执行
+     * @param delay 延时，单位 ms
+     */
+    public synchronized void startTimer(Runnable task, int delay) {
+        if (cancelled) {
+            return;
+        }
+        this.task = task;
+        this.remainingDelay = -1;
+        this.deadline = HashedWheelTimer.now() + delay;
+        timeout.start(delay);
     }
 
-    public void resumeTimer() {
-        if (myTimerImpl != null) {
-            myTimerImpl.resumeTimer();
+    public synchronized void pauseTimer() {
+        if (task != null && remainingDelay < 0) {
+            timeout.cancel();
+            remainingDelay = Math.max(0L, deadline - HashedWheelTimer.now());
         }
     }
 
-    public void resetTimer() {
-        if (myTimerImpl != null) {
-            myTimerImpl.resetTimer();
+    public synchronized void resumeTimer() {
+        if (task != null && remainingDelay >= 0 && !cancelled) {
+            deadline = HashedWheelTimer.now() + remainingDelay;
+            timeout.start(remainingDelay);
+            remainingDelay = -1;
         }
     }
 
-    public void cancelTimer() {
-        if (myTimerImpl != null) {
-            myTimerImpl.cancelTimer();
-        }
+    public synchronized void resetTimer() {
+        timeout.cancel();
+        task = null;
+        remainingDelay = -1;
     }
 
-    private static final class MyTimerImpl extends Thread {
-
-        private static final int TIME_TICK = 10; // 计时时，默认单位时间步进为 10ms
-        private int timeTick; //计时时的单位时间步进
-
-        private AtomicBoolean quit = new AtomicBoolean(false);
-        private AtomicBoolean isTimerStart = new AtomicBoolean(false);
-
-        private volatile long currentTimeCounter = 0;
-        private volatile long triggerTime = 0;
-
-        private Runnable task;
-
-        private final Object threadLock = new Object();
-
-        private MyTimerImpl() {
-            super();
-            timeTick = TIME_TICK;
-        }
-
-        private MyTimerImpl(int timeTick){
-            super();
-            this.timeTick = timeTick;
-        }
-
-        @Override
-        public void run() {
-            super.run();
-
-            while ( !quit.get() ) {
-
-                if ( !isTimerStart.get() ) {
-                    pauseThread();
-
-                } else {
-
-                    threadSleep(timeTick);
-                    currentTimeCounter++;
-
-                    // 延时时间到，执行外部任务
-                    if (currentTimeCounter >= triggerTime && triggerTime > 0) {
-                        if (task != null) {
-                            task.run();
-                        }
-                        resetTimer(); // 执行完延时任务则回到睡眠模式
-                    }
-                }
-            }
-        }
-
-        // delay 延时单位时间是毫秒
-        private void startTimer(Runnable outerTask, int delay) {
-            this.isTimerStart.set(true);
-            this.task = outerTask;
-            this.triggerTime = currentTimeCounter + delay / TIME_TICK;  // 任务触法时间为 当前时间加上延时时间
-            invokeThread();
-        }
-
-        private void pauseTimer() {
-            if (isTimerStart.get()) {
-                this.isTimerStart.set(false);
-            }
-        }
-
-        private void resumeTimer() {
-            if ( !isTimerStart.get() ) {
-                invokeThread();
-            }
-        }
-
-        private void resetTimer() {
-            this.isTimerStart.set(false);
-            this.triggerTime = 0;
-            this.currentTimeCounter = 0;
-            task = null;
-        }
-
-        private void cancelTimer() {
-            quit.set(true);
-        }
-
-        private void threadSleep(int ms) {
-            try {
-                Thread.sleep(ms);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        private void pauseThread() {
-            synchronized (threadLock){
-                while( !isTimerStart.get() ){
-                    try {
-                        threadLock.wait();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
-
-        private void invokeThread() {
-            synchronized (threadLock) {
-                isTimerStart.set(true);
-                threadLock.notifyAll();
-            }
-        }
+    /**
+     * 注销定时器，之后不再接受新的定时任务
+     */
+    public synchronized void cancelTimer() {
+        cancelled = true;
+        resetTimer();
     }
 
 }
@@ -0,0 +1,15 @@
+package android.util;
+
+/**
+ * 本地单元测试使用的 Log，替代 android.jar 中未实现的同名类
+ * 协议栈只通过 Log 输出日志，其他 Android API 在单元测试中仍会抛出未实现异常，不会被静默忽略
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+}
@@ -0,0 +1,140 @@
+package com.aylmerchen.stack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多射频网关模式的吞吐量：同一 {@link StackGroup} 中创建 N 对协议栈，每对模拟一个独立的射频模块，
+ * 各自发送相同数量的信息，统计全部收到的总耗时
+ * 每个模拟射频写一个蓝牙包需要 {@link #LINK_MS}，吞吐量主要受链路时间限制，
+ * 各实例的收发状态互不影响时，总吞吐量应随射频个数线性增长
+ */
+public class StackGroupScalingBenchmark {
+
+    /**
+     * 模拟射频写一个蓝牙包的耗时，单位 ms
+     */
+    private static final long LINK_MS = 2;
+
+    private static final int MESSAGES_PER_RADIO = 10;
+
+    private static final int MESSAGE_SIZE = 300;
+
+    @Test
+    public void throughputScalesWithRadios() throws Exception {
+        // 预热
+        run(1);
+
+        double single = run(1);
+        double four = run(4);
+        double eight = run(8);
+
+        System.out.println(String.format("1 radio: %.0f B/s; 4 radios: %.0f B/s (x%.2f); 8 radios: %.0f B/s (x%.2f)",
+                single, four, four / single, eight, eight / single));
+
+        assertTrue(four > 3 * single);
+        assertTrue(eight > 6 * single);
+    }
+
+    private static IConfig config(final long address) {
+        return new IConfig() {
+            @Override
+            public int getPhyMaxSendSize() {
+                return 128;
+            }
+
+            @Override
+            public long getMyAddress() {
+                return address;
+            }
+
+            @Override
+            public long getFrameGap() {
+                return 5;
+            }
+        };
+    }
+
+    /**
+     * @param radios 模拟射频个数
+     * @return 总吞吐量，单位 B/s
+     */
+    private static double run(int radios) throws Exception {
+        StackGroup group = new StackGroup();
+        final CountDownLatch received = new CountDownLatch(radios * MESSAGES_PER_RADIO);
+        List<ScheduledExecutorService> airs = new ArrayList<>();
+        List<StackContext> senders = new ArrayList<>();
+
+        for (int i = 0; i < radios; i++) {
+            final ScheduledExecutorService air = Executors.newSingleThreadScheduledExecutor();
+            airs.add(air);
+
+            final StackContext receiver = group.newStack(config(1000 + i), new IComm() {
+                @Override
+                public void stackPackageFinish(byte[] packagedData) {
+                }
+
+                @Override
+                public void stackUnPackageFinish(long sendId, byte[] unPackagedData) {
+                    received.countDown();
+                }
+
+                @Override
+                public void transfer(byte[] transferData) {
+                }
+            });
+
+            final StackContext[] sender = new StackContext[1];
+            sender[0] = group.newStack(config(i + 1), new IComm() {
+                @Override
+                public void stackPackageFinish(final byte[] packagedData) {
+                    // 蓝牙包写入外设后经过链路时间到达对端，同时外设回调写完成
+                    air.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            receiver.receive(packagedData);
+                            sender[0].invokePHYSending();
+                        }
+                    }, LINK_MS, TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public void stackUnPackageFinish(long sendId, byte[] unPackagedData) {
+                }
+
+                @Override
+                public void transfer(byte[] transferData) {
+                }
+            });
+            senders.add(sender[0]);
+        }
+
+        long start = System.nanoTime();
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < radios; i++) {
+            for (int k = 0; k < MESSAGES_PER_RADIO; k++) {
+                results.add(senders.get(i).sendAsync(1000 + i, new byte[MESSAGE_SIZE]));
+            }
+        }
+        for (Future<Void> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        assertTrue(received.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+
+        group.cancelGroup();
+        for (ScheduledExecutorService air : airs) {
+            air.shutdownNow();
+        }
+        return (double) radios * MESSAGES_PER_RADIO * MESSAGE_SIZE * 1e9 / elapsed;
+    }
+}
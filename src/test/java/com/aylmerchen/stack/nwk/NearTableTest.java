@@ -0,0 +1,92 @@
+package com.aylmerchen.stack.nwk;
+
+import com.aylmerchen.stack.util.AllocationCounter;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NearTableTest {
+
+    @Test
+    public void matchesLruModel() {
+        int capacity = 50;
+        NearTable table = new NearTable(60 * 60 * 1000, capacity);
+        Map<Long, Boolean> model = new LinkedHashMap<>(16, 0.75f, true);
+
+        Random random = new Random(3);
+        for (int i = 0; i < 300000; i++) {
+            // 地址数多于容量，覆盖淘汰和探测链前移
+            long address = random.nextInt(120) * 7919L;
+            if (random.nextBoolean()) {
+                table.updateNeighbour(address);
+                model.put(address, Boolean.TRUE);
+                if (model.size() > capacity) {
+                    Iterator<Long> it = model.keySet().iterator();
+                    it.next();
+                    it.remove();
+                }
+            } else {
+                assertEquals(model.containsKey(address), table.contains(address));
+            }
+            assertEquals(model.size(), table.size());
+        }
+    }
+
+    @Test
+    public void expiresFromOldest() throws InterruptedException {
+        NearTable table = new NearTable(200);
+        for (long i = 0; i < 10; i++) {
+            table.updateNeighbour(i);
+        }
+        Thread.sleep(120);
+        table.updateNeighbour(3);
+        Thread.sleep(120);
+
+        assertTrue(table.contains(3));
+        assertFalse(table.contains(4));
+        assertEquals(1, table.size());
+        assertArrayEquals(new long[]{3}, table.getNeighbours(1000));
+    }
+
+    @Test
+    public void neighboursListedFromMostRecent() {
+        NearTable table = new NearTable();
+        table.updateNeighbour(1);
+        table.updateNeighbour(2);
+        table.updateNeighbour(3);
+        table.updateNeighbour(1);
+        assertArrayEquals(new long[]{1, 3, 2}, table.getNeighbours(60000));
+    }
+
+    @Test
+    public void updateAllocatesNothing() {
+        Assume.assumeTrue(AllocationCounter.isSupported());
+        NearTable table = new NearTable(60000, NearTable.DEFAULT_CAPACITY);
+        // 地址数多于容量，每次更新都可能淘汰
+        for (int i = 0; i < 100000; i++) {
+            table.updateNeighbour(i % 300);
+        }
+
+        int rounds = 1000000;
+        long before = AllocationCounter.allocatedBytes();
+        long time = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            table.updateNeighbour(i % 300);
+        }
+        time = System.nanoTime() - time;
+        long bytes = AllocationCounter.allocatedBytes() - before;
+
+        System.out.println(String.format("NearTable.updateNeighbour: %.1f ns/op, %d B in %d updates", (double) time / rounds, bytes, rounds));
+        assertTrue("更新分配了 " + bytes + " 字节", bytes < rounds / 100);
+    }
+}
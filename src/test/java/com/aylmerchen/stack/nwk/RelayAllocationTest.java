@@ -0,0 +1,104 @@
+package com.aylmerchen.stack.nwk;
+
+import com.aylmerchen.stack.util.AllocationCounter;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 统计中继节点转发每一帧的内存分配：转发时在收到的数组上原地改写帧头，不应再复制帧或构造对象
+ */
+public class RelayAllocationTest {
+
+    private static final int FRAMES = 20000;
+
+    private static final int WARM_UP = 1000;
+
+    @Test
+    public void unicastRelayAllocatesNothing() {
+        measure(false, 3);
+        measure(true, 3);
+    }
+
+    @Test
+    public void broadcastRelayAllocatesNothing() {
+        measure(false, INwk.BROADCAST_ADDRESS);
+        measure(true, INwk.BROADCAST_ADDRESS);
+    }
+
+    /**
+     * 源节点 1 发出的帧逐一交给中继节点 2，目的地址不是中继节点，中继节点只转发
+     */
+    private static void measure(boolean compact, long destAddress) {
+        Assume.assumeTrue(AllocationCounter.isSupported());
+
+        final List<byte[]> frames = new ArrayList<>();
+        final byte[][] relayed = new byte[1][];
+        final int[] relayCount = new int[1];
+
+        LayerNwk source = new LayerNwk(1, 124, compact, new INwk.LayerCallback() {
+            @Override
+            public void packageDownward(byte[] sendData) {
+                frames.add(sendData);
+            }
+
+            @Override
+            public void unPackageUpward(long srcAddress, byte[] receiveData) {
+            }
+
+            @Override
+            public void transfer(byte[] transferData) {
+            }
+        });
+        LayerNwk relay = new LayerNwk(2, 124, compact, new INwk.LayerCallback() {
+            @Override
+            public void packageDownward(byte[] sendData) {
+            }
+
+            @Override
+            public void unPackageUpward(long srcAddress, byte[] receiveData) {
+            }
+
+            @Override
+            public void transfer(byte[] transferData) {
+                relayed[0] = transferData;
+                relayCount[0]++;
+            }
+        });
+
+        for (int i = 0; i < FRAMES; i++) {
+            source.packaging(destAddress, new byte[60]);
+        }
+
+        // 预热，同时让中继节点记录源节点的路由和相邻信息
+        for (int i = 0; i < WARM_UP; i++) {
+            relay.unPackaging(frames.get(i));
+        }
+
+        relayCount[0] = 0;
+        long before = AllocationCounter.allocatedBytes();
+        for (int i = WARM_UP; i < FRAMES; i++) {
+            relay.unPackaging(frames.get(i));
+        }
+        long bytes = AllocationCounter.allocatedBytes() - before;
+
+        int relays = FRAMES - WARM_UP;
+        System.out.println(String.format("compact=%b dest=%d: %.2f B/relay", compact, destAddress, (double) bytes / relays));
+
+        assertEquals(relays, relayCount[0]);
+        assertSame(frames.get(FRAMES - 1), relayed[0]);
+        // 广播帧需要交给上层，只复制一次数据部分（数组头约 16 字节）；单播帧不交付，只允许零散分配
+        if (destAddress != INwk.BROADCAST_ADDRESS) {
+            assertTrue("中继转发分配了 " + bytes + " 字节", bytes < relays);
+        } else {
+            assertTrue("中继转发分配了 " + bytes + " 字节", bytes <= (long) relays * (60 + 24));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.aylmerchen.stack.nwk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 8x8 网格上的泛洪模拟：左上角节点发出一个广播，统计全网的发送次数和收到的节点数
+ * 节点间距不超过 sqrt(range2) 的互为邻居，单线程按发送顺序投递，跳数上限为 {@link LayerNwk} 的 MAX_RIP
+ * 随机退避使抑制后的结果略有波动，只断言明显的趋势，具体数值见输出
+ */
+public class RelaySuppressionSimulationTest {
+
+    private static final int WIDTH = 8;
+
+    private static final int NODES = WIDTH * WIDTH;
+
+    /**
+     * 稠密网格，内部节点有 36 个邻居
+     */
+    private static final int DENSE = 10;
+
+    /**
+     * 稀疏网格，内部节点有 20 个邻居
+     */
+    private static final int SPARSE = 5;
+
+    private static final long BACKOFF_WINDOW = 60;
+
+    @Test
+    public void plainFloodingIsDeterministic() throws Exception {
+        int[] dense = flood(DENSE, 0);
+        assertEquals(39, dense[0]);
+        assertEquals(60, dense[1]);
+
+        int[] sparse = flood(SPARSE, 0);
+        assertEquals(22, sparse[0]);
+        assertEquals(42, sparse[1]);
+    }
+
+    @Test
+    public void suppressionCutsTransmissionsInDenseGrid() throws Exception {
+        int[] plain = flood(DENSE, 0);
+        int[] suppressed = flood(DENSE, 4);
+        assertTrue(suppressed[0] * 2 < plain[0]);
+        assertTrue(suppressed[1] >= plain[1] - 10);
+    }
+
+    @Test
+    public void suppressionTradesCoverageInSparseGrid() throws Exception {
+        int[] plain = flood(SPARSE, 0);
+        int[] suppressed = flood(SPARSE, 3);
+        assertTrue(suppressed[0] < plain[0]);
+        assertTrue(suppressed[1] <= plain[1]);
+    }
+
+    /**
+     * @param range2 邻居距离的平方上限
+     * @param threshold 抑制阈值，0 为不抑制
+     * @return 发送次数（含源节点）和收到广播的节点数
+     */
+    private static int[] flood(int range2, int threshold) throws Exception {
+        final LayerNwk[] nodes = new LayerNwk[NODES];
+        final ExecutorService air = Executors.newSingleThreadExecutor();
+        final AtomicInteger transmissions = new AtomicInteger();
+        final Set<Integer> covered = Collections.synchronizedSet(new HashSet<Integer>());
+
+        final List<List<Integer>> neighbours = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            List<Integer> list = new ArrayList<>();
+            for (int j = 0; j < NODES; j++) {
+                int dx = i % WIDTH - j % WIDTH;
+                int dy = i / WIDTH - j / WIDTH;
+                if (i != j && dx * dx + dy * dy <= range2) {
+                    list.add(j);
+                }
+            }
+            neighbours.add(list);
+        }
+
+        for (int i = 0; i < NODES; i++) {
+            final int me = i;
+            nodes[i] = new LayerNwk(i + 1, 124, true, new INwk.LayerCallback() {
+                @Override
+                public void packageDownward(byte[] sendData) {
+                    send(sendData);
+                }
+
+                @Override
+                public void unPackageUpward(long srcAddress, byte[] receiveData) {
+                    covered.add(me);
+                }
+
+                @Override
+                public void transfer(byte[] transferData) {
+                    send(transferData);
+                }
+
+                private void send(final byte[] frame) {
+                    transmissions.incrementAndGet();
+                    air.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int to : neighbours.get(me)) {
+                                nodes[to].unPackaging(frame.clone());
+                            }
+                        }
+                    });
+                }
+            });
+            nodes[i].setRelaySuppression(threshold, BACKOFF_WINDOW);
+        }
+
+        nodes[0].packaging(INwk.BROADCAST_ADDRESS, new byte[]{1});
+        Thread.sleep(800);
+        air.shutdown();
+        air.awaitTermination(1, TimeUnit.SECONDS);
+
+        System.out.println(String.format("range2=%d k=%d: transmissions=%d covered=%d/%d",
+                range2, threshold, transmissions.get(), covered.size(), NODES - 1));
+        return new int[]{transmissions.get(), covered.size()};
+    }
+}
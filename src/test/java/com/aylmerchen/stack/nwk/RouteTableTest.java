@@ -0,0 +1,147 @@
+package com.aylmerchen.stack.nwk;
+
+import com.aylmerchen.stack.util.AllocationCounter;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RouteTableTest {
+
+    /**
+     * 参考模型中的一条路由，按插入顺序即更新顺序排列
+     */
+    private static final class Route {
+
+        final long dest;
+
+        final long next;
+
+        final int rip;
+
+        /**
+         * 链中跳数相同的路由按加入链的先后排列
+         */
+        final long order;
+
+        Route(long dest, long next, int rip, long order) {
+            this.dest = dest;
+            this.next = next;
+            this.rip = rip;
+            this.order = order;
+        }
+    }
+
+    @Test
+    public void matchesReferenceModel() {
+        int capacity = 40;
+        RouteTable table = new RouteTable(60 * 60 * 1000, capacity);
+        Map<String, Route> model = new LinkedHashMap<>();
+
+        Random random = new Random(5);
+        long order = 0;
+        for (int i = 0; i < 400000; i++) {
+            long dest = random.nextInt(25);
+            long next = random.nextInt(6);
+            String key = dest + ":" + next;
+            int op = random.nextInt(10);
+
+            if (op < 5) {
+                int rip = 1 + random.nextInt(4);
+                table.updateRoute(dest, next, rip);
+                model.remove(key);
+                model.put(key, new Route(dest, next, rip, order++));
+                if (model.size() > capacity) {
+                    Iterator<Route> it = model.values().iterator();
+                    it.next();
+                    it.remove();
+                }
+            } else if (op < 6) {
+                table.removeRoute(dest, next);
+                model.remove(key);
+            } else if (op < 7) {
+                table.removeRoute(dest);
+                Iterator<Route> it = model.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().dest == dest) {
+                        it.remove();
+                    }
+                }
+            } else {
+                Route best = null;
+                for (Route route : model.values()) {
+                    if (route.dest == dest && (best == null || route.rip < best.rip
+                            || (route.rip == best.rip && route.order < best.order))) {
+                        best = route;
+                    }
+                }
+                assertEquals(best != null, table.contains(dest));
+                assertEquals(best == null ? INwk.BROADCAST_ADDRESS : best.next, table.getNextHop(dest));
+            }
+            assertEquals(model.size(), table.size());
+        }
+    }
+
+    @Test
+    public void expiredBestRouteFallsBack() throws InterruptedException {
+        RouteTable table = new RouteTable(200, 100);
+        table.updateRoute(1, 2, 3);
+        Thread.sleep(120);
+        table.updateRoute(1, 3, 2);
+        assertEquals(3, table.getNextHop(1));
+
+        // 跳数更少的路由也会超时，之后只能广播
+        Thread.sleep(120);
+        assertEquals(3, table.getNextHop(1));
+        assertEquals(1, table.size());
+        Thread.sleep(120);
+        assertFalse(table.contains(1));
+        assertEquals(INwk.BROADCAST_ADDRESS, table.getNextHop(1));
+    }
+
+    @Test
+    public void removeOneNextHopKeepsOthers() {
+        RouteTable table = new RouteTable();
+        table.updateRoute(1, 2, 1);
+        table.updateRoute(1, 3, 2);
+        table.removeRoute(1, 2);
+        assertTrue(table.contains(1));
+        assertEquals(3, table.getNextHop(1));
+    }
+
+    @Test
+    public void lookupAndUpdateAllocateNothing() {
+        Assume.assumeTrue(AllocationCounter.isSupported());
+        RouteTable table = new RouteTable(60000, RouteTable.DEFAULT_CAPACITY);
+        for (int i = 0; i < 800; i++) {
+            table.updateRoute(i, i % 7, i % 3 + 1);
+        }
+
+        int lookups = 2000000;
+        int updates = 1000000;
+        long sink = 0;
+        long before = AllocationCounter.allocatedBytes();
+        long time = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            sink += table.getNextHop(i % 800);
+        }
+        time = System.nanoTime() - time;
+        // 目的地址多于容量时淘汰最久未更新的路由
+        for (int i = 0; i < updates; i++) {
+            table.updateRoute(i % 900, i % 7, i % 3 + 1);
+        }
+        long bytes = AllocationCounter.allocatedBytes() - before;
+
+        System.out.println(String.format("RouteTable.getNextHop: %.1f ns/op; %d B in %d lookups and %d updates (%d)",
+                (double) time / lookups, bytes, lookups, updates, sink));
+        assertTrue("查询和更新分配了 " + bytes + " 字节", bytes < (lookups + updates) / 100);
+    }
+}
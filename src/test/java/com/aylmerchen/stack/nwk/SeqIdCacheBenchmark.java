@@ -0,0 +1,199 @@
+package com.aylmerchen.stack.nwk;
+
+import com.aylmerchen.stack.util.AllocationCounter;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 对比 {@link SeqIdCache} 和原接收帧缓存（LinkedHashSet&lt;UUID&gt;）的去重查找耗时和内存分配
+ * 负载与网络层接收时一致：每收到一帧先构造序列号再查重，约四分之一为近期重复帧
+ */
+public class SeqIdCacheBenchmark {
+
+    private static final int WARM_UP = 200000;
+
+    private static final int ROUNDS = 1000000;
+
+    /**
+     * 原接收帧缓存，先进先出，网络层原先使用的容量为 100，每次查找都需要构造 UUID
+     */
+    private static final class LegacyReceiveCache {
+
+        private final LinkedHashSet<UUID> set = new LinkedHashSet<>(50, 1.1f);
+
+        private final int maxSize;
+
+        LegacyReceiveCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        boolean add(long high, long low) {
+            UUID uuid = new UUID(high, low);
+            if (set.contains(uuid)) {
+                return false;
+            }
+            if (set.size() == maxSize) {
+                Iterator<UUID> it = set.iterator();
+                it.next();
+                it.remove();
+            }
+            set.add(uuid);
+            return true;
+        }
+    }
+
+    /**
+     * 预先生成的帧序列号，避免生成过程计入分配，重复帧取自最近 50 个新序列号
+     */
+    private static long[][] workload(int count, long seed) {
+        Random random = new Random(seed);
+        long[] high = new long[count];
+        long[] low = new long[count];
+        int[] fresh = new int[50];
+        int freshCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (freshCount >= fresh.length && random.nextInt(4) == 0) {
+                int from = fresh[random.nextInt(fresh.length)];
+                high[i] = high[from];
+                low[i] = low[from];
+            } else {
+                high[i] = random.nextLong();
+                low[i] = random.nextLong();
+                fresh[freshCount++ % fresh.length] = i;
+            }
+        }
+        return new long[][]{high, low};
+    }
+
+    @Test
+    public void sameDuplicatesWithinLegacyWindow() {
+        long[][] ids = workload(ROUNDS, 1);
+        SeqIdCache cache = new SeqIdCache(8192, 60000);
+        LegacyReceiveCache legacy = new LegacyReceiveCache(100);
+        for (int i = 0; i < ROUNDS; i++) {
+            assertEquals(legacy.add(ids[0][i], ids[1][i]), cache.add(ids[0][i], ids[1][i]));
+        }
+    }
+
+    @Test
+    public void legacyWindowForgetsOldDuplicates() {
+        SeqIdCache cache = new SeqIdCache(8192, 60000);
+        LegacyReceiveCache legacy = new LegacyReceiveCache(100);
+        for (long i = 0; i < 1000; i++) {
+            cache.add(i, i);
+            legacy.add(i, i);
+        }
+        // 1000 帧之前的重复帧，原缓存已淘汰，会被再次交付和转发
+        assertTrue(legacy.add(0, 0));
+        assertTrue(!cache.add(0, 0));
+    }
+
+    @Test
+    public void compareLookupCostAndAllocation() {
+        Assume.assumeTrue(AllocationCounter.isSupported());
+        long[][] ids = workload(WARM_UP + ROUNDS, 2);
+
+        final SeqIdCache cache = new SeqIdCache(8192, 60000);
+        long[] seqId = measure(ids, new Dedup() {
+            @Override
+            public boolean add(long high, long low) {
+                return cache.add(high, low);
+            }
+        });
+
+        final LegacyReceiveCache legacy = new LegacyReceiveCache(100);
+        long[] legacySmall = measure(ids, new Dedup() {
+            @Override
+            public boolean add(long high, long low) {
+                return legacy.add(high, low);
+            }
+        });
+
+        // 与新缓存相同的去重窗口
+        final LegacyReceiveCache legacyLarge = new LegacyReceiveCache(8192);
+        long[] legacyWide = measure(ids, new Dedup() {
+            @Override
+            public boolean add(long high, long low) {
+                return legacyLarge.add(high, low);
+            }
+        });
+
+        System.out.println(String.format("SeqIdCache(8192): %.1f ns/op, %.2f B/op", (double) seqId[0] / ROUNDS, (double) seqId[1] / ROUNDS));
+        System.out.println(String.format("LinkedHashSet<UUID>(100): %.1f ns/op, %.2f B/op", (double) legacySmall[0] / ROUNDS, (double) legacySmall[1] / ROUNDS));
+        System.out.println(String.format("LinkedHashSet<UUID>(8192): %.1f ns/op, %.2f B/op", (double) legacyWide[0] / ROUNDS, (double) legacyWide[1] / ROUNDS));
+
+        // 查找和插入不分配对象，只允许计时等带来的少量零散分配
+        assertTrue("SeqIdCache 分配了 " + seqId[1] + " 字节", seqId[1] < ROUNDS / 100);
+        assertTrue(legacySmall[1] > seqId[1]);
+    }
+
+    private interface Dedup {
+        boolean add(long high, long low);
+    }
+
+    /**
+     * 预热后测量 ROUNDS 次查重
+     * @return 耗时（ns）和分配字节数
+     */
+    private static long[] measure(long[][] ids, Dedup dedup) {
+        int sink = 0;
+        for (int i = 0; i < WARM_UP; i++) {
+            sink += dedup.add(ids[0][i], ids[1][i]) ? 1 : 0;
+        }
+        long bytes = AllocationCounter.allocatedBytes();
+        long time = System.nanoTime();
+        for (int i = WARM_UP; i < WARM_UP + ROUNDS; i++) {
+            sink += dedup.add(ids[0][i], ids[1][i]) ? 1 : 0;
+        }
+        time = System.nanoTime() - time;
+        bytes = AllocationCounter.allocatedBytes() - bytes;
+        assertTrue(sink > 0);
+        return new long[]{time, bytes};
+    }
+
+    @Test
+    public void matchesFifoModelUnderFuzz() {
+        Random random = new Random(3);
+        SeqIdCache cache = new SeqIdCache(1000, 100000);
+        ArrayDeque<long[]> order = new ArrayDeque<>();
+        Set<String> model = new HashSet<>();
+        for (int i = 0; i < 200000; i++) {
+            long high;
+            long low;
+            if (!order.isEmpty() && random.nextInt(3) == 0) {
+                long[] old = order.toArray(new long[0][])[random.nextInt(order.size())];
+                high = old[0];
+                low = old[1];
+            } else if (random.nextInt(4) == 0) {
+                // 集中在少量取值上，制造哈希冲突和探测链
+                high = random.nextInt(2000);
+                low = random.nextInt(2);
+            } else {
+                high = random.nextLong();
+                low = random.nextLong();
+            }
+
+            boolean expected = model.add(high + ":" + low);
+            if (expected) {
+                order.addLast(new long[]{high, low});
+                if (order.size() > 1000) {
+                    long[] eldest = order.pollFirst();
+                    model.remove(eldest[0] + ":" + eldest[1]);
+                }
+            }
+            assertEquals(expected, cache.add(high, low));
+        }
+    }
+}
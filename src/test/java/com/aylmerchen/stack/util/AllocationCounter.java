@@ -0,0 +1,39 @@
+package com.aylmerchen.stack.util;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 统计当前线程的累计分配字节数，用于在 JVM 上的单元测试中比较各实现每次操作的内存分配
+ * 依赖 HotSpot 的 {@link com.sun.management.ThreadMXBean}，不支持时 {@link #isSupported()} 返回 false
+ */
+public final class AllocationCounter {
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = findBean();
+
+    private AllocationCounter() {
+    }
+
+    private static com.sun.management.ThreadMXBean findBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        sunBean.setThreadAllocatedMemoryEnabled(true);
+        return sunBean;
+    }
+
+    public static boolean isSupported() {
+        return THREAD_BEAN != null;
+    }
+
+    /**
+     * 当前线程从启动至今分配的字节数
+     */
+    public static long allocatedBytes() {
+        return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}